@@ -0,0 +1,56 @@
+package net.becvert.cordova;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+
+/**
+ * A service seen by one or more browsers, merged across interfaces.
+ */
+class BrowsedService {
+
+    // watched type + domain
+    final String type;
+
+    // latest record received from each browser
+    final Map<JmDNS, ServiceRecord> sources = new HashMap<JmDNS, ServiceRecord>();
+
+    // last record sent
+    ServiceRecord record;
+    boolean resolved;
+    long lastSeen;
+
+    // false while a service of the base type is not known to have the watched subtype
+    boolean member = true;
+
+    public BrowsedService(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Returns false when the browser already reported the same records, the TXT record is then not parsed again.
+     */
+    public boolean update(JmDNS source, ServiceInfo info) {
+        ServiceRecord previous = sources.get(source);
+        if (previous != null && previous.isSameAs(info)) {
+            return false;
+        }
+        sources.put(source, new ServiceRecord(info));
+        return true;
+    }
+
+    public ServiceRecord merge() {
+        ServiceRecord merged = null;
+        for (ServiceRecord record : sources.values()) {
+            if (merged == null) {
+                merged = new ServiceRecord(record);
+            } else {
+                merged.merge(record);
+            }
+        }
+        return merged;
+    }
+
+}
@@ -0,0 +1,965 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+import javax.jmdns.impl.DNSEntry;
+import javax.jmdns.impl.DNSRecord;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.constants.DNSRecordClass;
+import javax.jmdns.impl.constants.DNSRecordType;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+
+/**
+ * Browses the watched types on every JmDNS instance, and merges the services seen on several interfaces.
+ * A watched type may be a subtype, and several types may share the same callback.
+ * The service types present on the network are browsed on demand, and cached.
+ * Services saved by the previous launch are restored when their type is watched again.
+ */
+class BrowserManager {
+
+    private static final String TAG = "ZeroConf";
+
+    // browsed services not heard of for longer, and gone from the JmDNS caches, are dropped
+    // JmDNS announces services with a TTL of one hour
+    static final long SERVICE_CACHE_TTL = 60 * 60 * 1000;
+
+    // restored services not seen on the network within that delay are removed
+    private static final long RESTORED_SERVICE_TIMEOUT = 10 * 1000;
+
+    // the answers to the queries of a subtype may come after the services were found through their base type
+    private static final long SUBTYPE_ANSWER_DELAY = 2 * 1000;
+
+    private static final String SUBTYPE_SEPARATOR = "._sub.";
+
+    // service types browsed for longer ago are browsed again, 75 minutes is the TTL of shared records
+    private static final long TYPE_CACHE_TTL = 75 * 60 * 1000;
+
+    private static final String TYPES_TYPE = "_services._dns-sd._udp.";
+
+    private final ZeroConfHost host;
+    private final ResponderPool responderPool;
+    private final Metrics metrics;
+
+    private final String addressFamily;
+    private final String responderMode;
+
+    private final List<JmDNS> browsers = new CopyOnWriteArrayList<JmDNS>();
+
+    // by watched type + domain, a callback may watch several types
+    private final Map<String, WatchCallback> callbacks = new ConcurrentHashMap<String, WatchCallback>();
+
+    // one listener per watched type or subtype, guarded by callbacks
+    private final Map<String, ServiceListener> listeners = new HashMap<String, ServiceListener>();
+
+    // services seen on any of the browsers, by watched type and service key
+    private final Map<String, BrowsedService> services = new HashMap<String, BrowsedService>();
+
+    // services saved by the previous launch, by watched type + domain, until watched, guarded by this
+    private final Map<String, List<StoredService>> restored = new HashMap<String, List<StoredService>>();
+
+    // service types seen on any of the browsers, by type + domain, guarded by this
+    private final Set<String> types = new LinkedHashSet<String>();
+
+    // type watches by domain, guarded by callbacks
+    private final Map<String, ResultCallback> typeCallbacks = new HashMap<String, ResultCallback>();
+
+    private final ServiceTypeListener typeListener = new ServiceTypeListener() {
+
+        @Override
+        public void serviceTypeAdded(ServiceEvent ev) {
+            typeAdded(ev);
+        }
+
+        @Override
+        public void subTypeForServiceTypeAdded(ServiceEvent ev) {
+            // subtypes are browsed through their type
+        }
+    };
+
+    // guarded by callbacks, like listener (un)registration
+    private int typeUsers;
+    private long typesListeningSince;
+    private long typesBrowsedAt = -TYPE_CACHE_TTL;
+    private boolean closed;
+    private boolean suspended;
+    private boolean lockHeld;
+
+    public BrowserManager(ZeroConfHost host, String addressFamily, String responderMode) throws IOException {
+
+        this.host = host;
+        this.responderPool = host.getResponderPool();
+        this.metrics = host.getMetrics();
+        this.addressFamily = addressFamily;
+        this.responderMode = responderMode;
+
+        browsers.addAll(responderPool.acquire(responderPool.keysFor(host.selectAddresses(addressFamily, responderMode)), host.getHostname()));
+    }
+
+    /**
+     * The multicast lock is only held while there are watches, and browsing is not suspended.
+     */
+    private void updateLock() {
+        boolean needed = !closed && !suspended && (!callbacks.isEmpty() || typeUsers > 0);
+        if (needed && !lockHeld) {
+            host.acquireLock();
+            lockHeld = true;
+        } else if (!needed && lockHeld) {
+            host.releaseLock();
+            lockHeld = false;
+        }
+    }
+
+    /**
+     * Stops browsing while the app is in background. Watches and discovered services are kept.
+     */
+    public void suspend() {
+
+        synchronized (callbacks) {
+            if (closed || suspended) {
+                return;
+            }
+            suspended = true;
+
+            for (Map.Entry<String, ServiceListener> entry : listeners.entrySet()) {
+                for (JmDNS browser : browsers) {
+                    removeListener(browser, entry.getKey(), entry.getValue());
+                }
+            }
+            if (typeUsers > 0) {
+                removeTypeListener(browsers);
+            }
+            updateLock();
+        }
+
+        ZeroConfLog.d(TAG, "Browsing suspended");
+    }
+
+    /**
+     * Browsing again sends fresh queries, so that the services are refreshed quickly.
+     */
+    public void resume() {
+
+        synchronized (callbacks) {
+            if (closed || !suspended) {
+                return;
+            }
+            suspended = false;
+
+            updateLock();
+            for (Map.Entry<String, ServiceListener> entry : listeners.entrySet()) {
+                for (JmDNS browser : browsers) {
+                    addListener(browser, entry.getKey(), entry.getValue());
+                }
+            }
+            if (typeUsers > 0) {
+                addTypeListener(browsers);
+            }
+        }
+
+        ZeroConfLog.d(TAG, "Browsing resumed");
+    }
+
+    /**
+     * Releases the instances of the addresses that are gone, and starts browsing the watched types on the new ones.
+     * The services only seen on the addresses that are gone are reported as removed.
+     */
+    public void updateAddresses() {
+
+        List<JmDNS> removed = new ArrayList<JmDNS>();
+        synchronized (callbacks) {
+            if (closed) {
+                return;
+            }
+
+            List<InetAddress> keys = responderPool.keysFor(host.selectAddresses(addressFamily, responderMode));
+            for (JmDNS browser : browsers) {
+                if (!keys.remove(responderPool.addressOf(browser))) {
+                    removed.add(browser);
+                }
+            }
+            if (removed.isEmpty() && keys.isEmpty()) {
+                return;
+            }
+
+            ZeroConfLog.d(TAG, "Browsers removed " + removed.size() + ", added " + keys.size());
+
+            for (JmDNS browser : removed) {
+                for (Map.Entry<String, ServiceListener> entry : listeners.entrySet()) {
+                    removeListener(browser, entry.getKey(), entry.getValue());
+                }
+            }
+            if (typeUsers > 0) {
+                removeTypeListener(removed);
+            }
+            browsers.removeAll(removed);
+
+            if (!keys.isEmpty()) {
+                try {
+                    List<JmDNS> added = responderPool.acquire(keys, host.getHostname());
+                    browsers.addAll(added);
+                    for (JmDNS browser : added) {
+                        for (Map.Entry<String, ServiceListener> entry : listeners.entrySet()) {
+                            if (!suspended) {
+                                addListener(browser, entry.getKey(), entry.getValue());
+                            }
+                        }
+                    }
+                    if (typeUsers > 0 && !suspended) {
+                        addTypeListener(added);
+                    }
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, BrowsedService> entry : new ArrayList<Map.Entry<String, BrowsedService>>(services.entrySet())) {
+                for (JmDNS browser : removed) {
+                    removeSource(entry.getKey(), entry.getValue(), browser);
+                }
+            }
+        }
+
+        responderPool.release(removed);
+    }
+
+    /**
+     * Watches the types, type + domain, with the same callback.
+     * A type already watched is taken over, the callback then gets the services already known.
+     */
+    public void watch(List<String> keys, WatchCallback callback) {
+
+        List<String> takenOver = new ArrayList<String>();
+        synchronized (callbacks) {
+            if (closed) {
+                throw new IllegalStateException("Browser closed");
+            }
+
+            for (String key : keys) {
+                WatchCallback previous = callbacks.put(key, callback);
+                if (previous != null && previous != callback) {
+                    releaseCallback(previous);
+                    takenOver.add(key);
+                }
+
+                if (!listeners.containsKey(key)) {
+                    ServiceListener listener = new TypeListener(key);
+                    listeners.put(key, listener);
+                    if (!suspended) {
+                        for (JmDNS browser : browsers) {
+                            addListener(browser, key, listener);
+                        }
+                    }
+                }
+            }
+            updateLock();
+        }
+
+        if (!takenOver.isEmpty()) {
+            sendKnown(takenOver, callback);
+        }
+
+        if (!callback.lazy) {
+            sendRestored(keys);
+        }
+
+    }
+
+    /**
+     * The services already seen by the previous callback of the types, as if they had just been found.
+     */
+    private synchronized void sendKnown(List<String> keys, WatchCallback callback) {
+        for (BrowsedService service : services.values()) {
+            if (service.record == null || !service.member || !keys.contains(service.type)) {
+                continue;
+            }
+            if (!service.record.cached) {
+                callback.send("added", service.record);
+            }
+            if (service.resolved && !callback.lazy) {
+                callback.send("resolved", service.record);
+            }
+        }
+    }
+
+    public void unwatch(List<String> keys) {
+
+        synchronized (callbacks) {
+            if (closed) {
+                return;
+            }
+
+            for (String key : keys) {
+                ServiceListener listener = listeners.remove(key);
+                if (listener != null) {
+                    for (JmDNS browser : browsers) {
+                        removeListener(browser, key, listener);
+                    }
+                }
+
+                WatchCallback callback = callbacks.remove(key);
+                if (callback != null) {
+                    releaseCallback(callback);
+                }
+            }
+            updateLock();
+        }
+
+        synchronized (this) {
+            Iterator<BrowsedService> iter = services.values().iterator();
+            while (iter.hasNext()) {
+                String type = iter.next().type;
+                for (String key : keys) {
+                    if (type.equalsIgnoreCase(key)) {
+                        iter.remove();
+                        break;
+                    }
+                }
+            }
+        }
+
+    }
+
+    public synchronized void restore(List<StoredService> entries) {
+        for (StoredService entry : entries) {
+            String key = entry.key.toLowerCase();
+            List<StoredService> list = restored.get(key);
+            if (list == null) {
+                list = new ArrayList<StoredService>();
+                restored.put(key, list);
+            }
+            list.add(entry);
+        }
+    }
+
+    /**
+     * The resolved services, and the restored ones whose type was not watched, to be restored by the next launch.
+     */
+    public synchronized List<StoredService> getServices() {
+        List<StoredService> entries = new ArrayList<StoredService>();
+        long now = host.elapsedRealtime();
+        long wallNow = System.currentTimeMillis();
+        for (BrowsedService service : services.values()) {
+            if (service.resolved && service.member && !isExpired(service, now)) {
+                entries.add(new StoredService(service.type, service.record, wallNow - (now - service.lastSeen), SERVICE_CACHE_TTL));
+            }
+        }
+        for (List<StoredService> list : restored.values()) {
+            entries.addAll(list);
+        }
+        return entries;
+    }
+
+    /**
+     * The restored services of the types are sent right away, and queried for one by one rather than waiting for the browse.
+     * The ones not seen on the network in time are sent as removed.
+     */
+    private void sendRestored(List<String> keys) {
+
+        final List<String> serviceKeys = new ArrayList<String>();
+        List<ServiceRecord> queries = new ArrayList<ServiceRecord>();
+        synchronized (this) {
+            long now = host.elapsedRealtime();
+            long wallNow = System.currentTimeMillis();
+            for (String key : keys) {
+                List<StoredService> entries = restored.remove(key.toLowerCase());
+                if (entries == null) {
+                    continue;
+                }
+
+                for (StoredService entry : entries) {
+                    String serviceKey = getServiceKey(key, entry.record.getKey());
+                    if (services.containsKey(serviceKey)) {
+                        // already seen on the network
+                        continue;
+                    }
+
+                    BrowsedService service = new BrowsedService(key);
+                    service.record = entry.record;
+                    service.resolved = true;
+                    service.lastSeen = now - (wallNow - entry.seenAt);
+                    services.put(serviceKey, service);
+                    serviceKeys.add(serviceKey);
+                    sendCallback("resolved", service);
+
+                    if (!suspended) {
+                        queries.add(entry.record);
+                    }
+                }
+            }
+        }
+
+        if (serviceKeys.isEmpty()) {
+            return;
+        }
+
+        ZeroConfLog.d(TAG, "Services restored " + serviceKeys.size());
+
+        host.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expireRestored(serviceKeys);
+            }
+        }, RESTORED_SERVICE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        // the services still present answer, and are then resolved by event
+        for (ServiceRecord record : queries) {
+            for (JmDNS browser : browsers) {
+                requestServiceInfo(browser, record.type + record.domain, record.name);
+            }
+        }
+    }
+
+    private synchronized void expireRestored(List<String> serviceKeys) {
+        for (String serviceKey : serviceKeys) {
+            BrowsedService service = services.get(serviceKey);
+            if (service != null && service.record.cached) {
+                services.remove(serviceKey);
+                sendCallback("removed", service);
+            }
+        }
+    }
+
+    // holding callbacks
+    private void releaseCallback(WatchCallback callback) {
+        if (!callbacks.containsValue(callback)) {
+            // none of its types is watched anymore
+            callback.cancel();
+        }
+    }
+
+    public List<ResponderResult<Void>> close() {
+
+        synchronized (callbacks) {
+            if (closed) {
+                return new ArrayList<ResponderResult<Void>>();
+            }
+            closed = true;
+
+            updateLock();
+
+            for (Map.Entry<String, ServiceListener> entry : listeners.entrySet()) {
+                for (JmDNS browser : browsers) {
+                    removeListener(browser, entry.getKey(), entry.getValue());
+                }
+            }
+            listeners.clear();
+
+            if (typeUsers > 0) {
+                removeTypeListener(browsers);
+                typeUsers = 0;
+            }
+            typeCallbacks.clear();
+
+            for (WatchCallback callback : callbacks.values()) {
+                callback.cancel();
+            }
+            callbacks.clear();
+        }
+
+        synchronized (this) {
+            services.clear();
+        }
+
+        List<JmDNS> targets = new ArrayList<JmDNS>(browsers);
+        browsers.clear();
+        return responderPool.release(targets);
+
+    }
+
+    /**
+     * Returns the service types of the domain after browsing for timeout ms, or right away when they were browsed lately.
+     */
+    public void browseTypes(final String domain, final int timeout, final ResultCallback callback) {
+
+        synchronized (callbacks) {
+            if (closed) {
+                throw new IllegalStateException("Browser closed");
+            }
+
+            long now = host.elapsedRealtime();
+            if (now - typesBrowsedAt < TYPE_CACHE_TTL || (typeUsers > 0 && now - typesListeningSince >= timeout)) {
+                callback.success(listTypes(domain));
+                return;
+            }
+            startTypeBrowsing();
+        }
+
+        host.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (callbacks) {
+                    if (closed) {
+                        callback.error("Browser closed");
+                        return;
+                    }
+                    stopTypeBrowsing();
+                }
+                callback.success(listTypes(domain));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the service types of the domain as they appear, the known ones first.
+     */
+    public void watchTypes(String domain, ResultCallback callback) {
+
+        synchronized (callbacks) {
+            if (closed) {
+                throw new IllegalStateException("Browser closed");
+            }
+
+            if (typeCallbacks.put(domain.toLowerCase(), callback) == null) {
+                startTypeBrowsing();
+            }
+        }
+
+        JSONArray known = listTypes(domain);
+        for (int i = 0; i < known.length(); i++) {
+            sendTypeCallback(callback, known.optString(i));
+        }
+    }
+
+    public void unwatchTypes(String domain) {
+
+        synchronized (callbacks) {
+            if (!closed && typeCallbacks.remove(domain.toLowerCase()) != null) {
+                stopTypeBrowsing();
+            }
+        }
+    }
+
+    // holding callbacks
+    private void startTypeBrowsing() {
+        if (typeUsers++ > 0) {
+            return;
+        }
+
+        long now = host.elapsedRealtime();
+        if (now - typesBrowsedAt >= TYPE_CACHE_TTL) {
+            synchronized (this) {
+                types.clear();
+            }
+        }
+        typesListeningSince = now;
+
+        updateLock();
+        if (!suspended) {
+            addTypeListener(browsers);
+        }
+    }
+
+    // holding callbacks
+    private void stopTypeBrowsing() {
+        if (--typeUsers > 0) {
+            return;
+        }
+
+        typesBrowsedAt = host.elapsedRealtime();
+
+        if (!suspended) {
+            removeTypeListener(browsers);
+        }
+        updateLock();
+    }
+
+    private void addTypeListener(List<JmDNS> targets) {
+        for (JmDNS browser : targets) {
+            try {
+                browser.addServiceTypeListener(typeListener);
+            } catch (IOException e) {
+                ZeroConfLog.e(TAG, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void removeTypeListener(List<JmDNS> targets) {
+        for (JmDNS browser : targets) {
+            browser.removeServiceTypeListener(typeListener);
+        }
+    }
+
+    private void typeAdded(ServiceEvent ev) {
+        metrics.eventReceived(TYPES_TYPE + "local.", responderPool.addressOf(ev.getDNS()));
+
+        // types are reported per interface, with their domain: _http._tcp.local.
+        String type = ev.getType();
+        synchronized (this) {
+            if (!types.add(type.toLowerCase())) {
+                return;
+            }
+        }
+
+        synchronized (callbacks) {
+            for (Map.Entry<String, ResultCallback> entry : typeCallbacks.entrySet()) {
+                if (type.toLowerCase().endsWith("." + entry.getKey())) {
+                    sendTypeCallback(entry.getValue(), type.substring(0, type.length() - entry.getKey().length()));
+                }
+            }
+        }
+    }
+
+    private void sendTypeCallback(ResultCallback callback, String type) {
+        try {
+            JSONObject status = new JSONObject();
+            status.put("action", "added");
+            status.put("type", type);
+            callback.send(status);
+        } catch (JSONException e) {
+            ZeroConfLog.e(TAG, e.getMessage(), e);
+            callback.error("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The types of the domain, without the domain: _http._tcp.
+     */
+    private synchronized JSONArray listTypes(String domain) {
+        JSONArray list = new JSONArray();
+        String suffix = "." + domain.toLowerCase();
+        for (String type : types) {
+            if (type.endsWith(suffix)) {
+                list.put(type.substring(0, type.length() - domain.length()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Snapshot of the services currently known, of all watched types when type is empty.
+     */
+    public synchronized JSONArray list(String type, String domain) throws JSONException {
+
+        JSONArray list = new JSONArray();
+        long now = host.elapsedRealtime();
+        Iterator<BrowsedService> iter = services.values().iterator();
+        while (iter.hasNext()) {
+            BrowsedService service = iter.next();
+            if (isExpired(service, now)) {
+                iter.remove();
+                sendCallback("removed", service);
+                continue;
+            }
+            if (!service.member) {
+                continue;
+            }
+            if (type == null || type.isEmpty() || service.type.equalsIgnoreCase(type + domain)) {
+                WatchCallback callback = callbacks.get(service.type);
+                if (callback != null && !callback.accepts(service.record)) {
+                    continue;
+                }
+                list.put(jsonifyService(service.record));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * JmDNS sends no event when it refreshes the records of an unchanged service,
+     * lastSeen is then updated from the PTR records in the caches of the browsers that saw it.
+     */
+    // holding this
+    private boolean isExpired(BrowsedService service, long now) {
+        if (now - service.lastSeen <= SERVICE_CACHE_TTL) {
+            return false;
+        }
+
+        long wallNow = System.currentTimeMillis();
+        boolean cached = false;
+        for (JmDNS source : service.sources.keySet()) {
+            if (!(source instanceof JmDNSImpl)) {
+                continue;
+            }
+            for (DNSEntry entry : ((JmDNSImpl) source).getCache().getDNSEntryList(getBaseType(service.type), DNSRecordType.TYPE_PTR, DNSRecordClass.CLASS_ANY)) {
+                DNSRecord record = (DNSRecord) entry;
+                if (record.isExpired(wallNow) || !service.record.getKey().equals(record.getServiceInfo().getKey())) {
+                    continue;
+                }
+                cached = true;
+                service.lastSeen = Math.max(service.lastSeen, now - (wallNow - record.getCreated()));
+            }
+        }
+        return !cached && now - service.lastSeen > SERVICE_CACHE_TTL;
+    }
+
+    private void serviceResolved(String key, ServiceEvent ev) {
+        ZeroConfLog.d(TAG, "Resolved");
+
+        ServiceInfo info = ev.getInfo();
+        metrics.eventReceived(info.getType(), responderPool.addressOf(ev.getDNS()));
+        WatchCallback callback = callbacks.get(key);
+        if (callback != null && callback.lazy) {
+            // only the names are watched, resolve is requested separately
+            return;
+        }
+        synchronized (this) {
+            String serviceKey = getServiceKey(key, info);
+            BrowsedService service = services.get(serviceKey);
+            if (service == null) {
+                service = new BrowsedService(key);
+                service.member = !isSubtype(key);
+                services.put(serviceKey, service);
+            }
+            service.lastSeen = host.elapsedRealtime();
+            if (!service.update(ev.getDNS(), info) && service.resolved) {
+                // nothing changed on this interface
+                return;
+            }
+
+            ServiceRecord record = service.merge();
+            if (!service.resolved || service.record.cached || !record.equals(service.record)) {
+                service.resolved = true;
+                service.record = record;
+                sendCallback("resolved", service);
+            }
+            updateMember(service);
+        }
+    }
+
+    private void serviceRemoved(String key, ServiceEvent ev) {
+        ZeroConfLog.d(TAG, "Removed");
+
+        ServiceInfo info = ev.getInfo();
+        metrics.eventReceived(info.getType(), responderPool.addressOf(ev.getDNS()));
+        synchronized (this) {
+            String serviceKey = getServiceKey(key, info);
+            BrowsedService service = services.get(serviceKey);
+            if (service == null) {
+                return;
+            }
+            if (service.record == null) {
+                service.record = new ServiceRecord(info);
+            }
+            removeSource(serviceKey, service, ev.getDNS());
+        }
+    }
+
+    // holding this
+    private void removeSource(String key, BrowsedService service, JmDNS source) {
+        if (service.sources.remove(source) == null) {
+            return;
+        }
+
+        if (service.sources.isEmpty()) {
+            // gone from the last interface
+            services.remove(key);
+            sendCallback("removed", service);
+        } else if (service.resolved) {
+            ServiceRecord record = service.merge();
+            if (!record.equals(service.record)) {
+                service.record = record;
+                sendCallback("resolved", service);
+            }
+        }
+    }
+
+    private void serviceAdded(String key, ServiceEvent ev) {
+        ZeroConfLog.d(TAG, "Added");
+
+        ServiceInfo info = ev.getInfo();
+        metrics.eventReceived(info.getType(), responderPool.addressOf(ev.getDNS()));
+        synchronized (this) {
+            String serviceKey = getServiceKey(key, info);
+            BrowsedService service = services.get(serviceKey);
+            if (service == null) {
+                service = new BrowsedService(key);
+                service.member = !isSubtype(key);
+                services.put(serviceKey, service);
+                service.update(ev.getDNS(), info);
+                service.record = service.merge();
+                service.lastSeen = host.elapsedRealtime();
+                sendCallback("added", service);
+            } else if (!service.sources.containsKey(ev.getDNS())) {
+                service.update(ev.getDNS(), info);
+                service.lastSeen = host.elapsedRealtime();
+            }
+
+            updateMember(service);
+            if (!service.member) {
+                checkMemberLater(serviceKey);
+            }
+        }
+    }
+
+    /**
+     * JmDNS sends the events of a subtype to the listeners of its base type, without the subtype,
+     * and only once per service whether the PTR record of the subtype or the base one came first.
+     * The watch of a subtype then keeps the services of the base type, and sends them once
+     * one of the browsers that saw them has the PTR record of the subtype in its cache.
+     */
+    // holding this
+    private void updateMember(BrowsedService service) {
+        if (service.member || service.record == null || !isMember(service)) {
+            return;
+        }
+        service.member = true;
+        sendCallback("added", service);
+        if (service.resolved) {
+            sendCallback("resolved", service);
+            return;
+        }
+
+        // JmDNS resolves the services of the base type once, before the listener of the subtype may have been added
+        WatchCallback callback = callbacks.get(service.type);
+        if (callback != null && !callback.lazy) {
+            for (JmDNS source : service.sources.keySet()) {
+                requestServiceInfo(source, service.record.type + service.record.domain, service.record.name);
+            }
+        }
+    }
+
+    /**
+     * Sent from the responders' pool, off the JmDNS thread and the locks.
+     * Without timeout, JmDNS sends the queries and waits for the answers 200 ms at most, the service is then resolved by event.
+     */
+    private void requestServiceInfo(final JmDNS browser, final String type, final String name) {
+        host.getResponders().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (browsers.contains(browser)) {
+                    browser.requestServiceInfo(type, name, false, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * The PTR records of the subtypes are cached under their base type, with their own name.
+     */
+    // holding this
+    private boolean isMember(BrowsedService service) {
+        long wallNow = System.currentTimeMillis();
+        for (JmDNS source : service.sources.keySet()) {
+            if (!(source instanceof JmDNSImpl)) {
+                continue;
+            }
+            for (DNSEntry entry : ((JmDNSImpl) source).getCache().getDNSEntryList(getBaseType(service.type), DNSRecordType.TYPE_PTR, DNSRecordClass.CLASS_ANY)) {
+                DNSRecord record = (DNSRecord) entry;
+                if (!record.isExpired(wallNow) && record.getName().equalsIgnoreCase(service.type)
+                        && service.record.getKey().equals(record.getServiceInfo().getKey())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * No event follows the answers to the subtype queries for a service already found through its base type.
+     */
+    private void checkMemberLater(final String serviceKey) {
+        host.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BrowserManager.this) {
+                    BrowsedService service = services.get(serviceKey);
+                    if (service != null) {
+                        updateMember(service);
+                    }
+                }
+            }
+        }, SUBTYPE_ANSWER_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isSubtype(String key) {
+        return key.toLowerCase().contains(SUBTYPE_SEPARATOR);
+    }
+
+    /**
+     * The base type of a watched subtype: _printer._sub._http._tcp.local. is browsed through _http._tcp.local.
+     */
+    private static String getBaseType(String key) {
+        int index = key.toLowerCase().indexOf(SUBTYPE_SEPARATOR);
+        return index < 0 ? key : key.substring(index + SUBTYPE_SEPARATOR.length());
+    }
+
+    /**
+     * The listener of a subtype gets its events through the base type,
+     * it is also added under the subtype only for JmDNS to query the subtype.
+     */
+    private static void addListener(JmDNS browser, String key, ServiceListener listener) {
+        if (isSubtype(key)) {
+            browser.addServiceListener(key, listener);
+        }
+        browser.addServiceListener(getBaseType(key), listener);
+    }
+
+    private static void removeListener(JmDNS browser, String key, ServiceListener listener) {
+        browser.removeServiceListener(getBaseType(key), listener);
+        if (isSubtype(key)) {
+            browser.removeServiceListener(key, listener);
+        }
+    }
+
+    /**
+     * A service may be seen by the watch of its type and by the watch of one of its subtypes.
+     */
+    private static String getServiceKey(String key, ServiceInfo info) {
+        return getServiceKey(key, info.getKey());
+    }
+
+    private static String getServiceKey(String key, String serviceKey) {
+        return key.toLowerCase() + " " + serviceKey;
+    }
+
+    private void sendCallback(String action, BrowsedService service) {
+        WatchCallback callback = callbacks.get(service.type);
+        if (callback == null || !service.member) {
+            return;
+        }
+
+        callback.send(action, service.record);
+    }
+
+    /**
+     * Each watched type has its own listener, so that the watches of a type and of its subtypes keep their services apart.
+     */
+    private class TypeListener implements ServiceListener {
+
+        private final String key;
+
+        public TypeListener(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void serviceAdded(ServiceEvent ev) {
+            BrowserManager.this.serviceAdded(key, ev);
+        }
+
+        @Override
+        public void serviceRemoved(ServiceEvent ev) {
+            BrowserManager.this.serviceRemoved(key, ev);
+        }
+
+        @Override
+        public void serviceResolved(ServiceEvent ev) {
+            BrowserManager.this.serviceResolved(key, ev);
+        }
+
+    }
+
+}
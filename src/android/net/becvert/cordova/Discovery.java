@@ -0,0 +1,136 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+
+/**
+ * One-shot browsing: collects the services of a type until maxResults are found or the timeout elapses,
+ * then releases the JmDNS instances and the multicast lock.
+ * Without resolve, only the names announced in PTR records are returned.
+ */
+class Discovery implements ServiceListener {
+
+    /**
+     * Used when no positive timeout is given, otherwise the discovery would return before anything is found.
+     */
+    static final int DEFAULT_TIMEOUT = 3000;
+
+    private final ZeroConfHost host;
+    private final ResponderPool responderPool;
+    private final String type;
+    private final String domain;
+    private final int maxResults;
+    private final boolean resolve;
+
+    private final Map<String, ServiceRecord> found = new LinkedHashMap<String, ServiceRecord>();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public Discovery(ZeroConfHost host, String type, String domain, int maxResults, boolean resolve) {
+        this.host = host;
+        this.responderPool = host.getResponderPool();
+        this.type = type;
+        this.domain = domain;
+        this.maxResults = maxResults;
+        this.resolve = resolve;
+    }
+
+    public JSONArray run(List<InetAddress> addresses, int timeout) throws IOException, JSONException {
+
+        List<JmDNS> browsers = responderPool.acquire(responderPool.keysFor(addresses), host.getHostname());
+        host.acquireLock();
+        try {
+            for (JmDNS browser : browsers) {
+                browser.addServiceListener(type + domain, this);
+            }
+            try {
+                done.await(timeout > 0 ? timeout : DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            for (JmDNS browser : browsers) {
+                browser.removeServiceListener(type + domain, this);
+            }
+            // ignores the events still being dispatched
+            done.countDown();
+            host.releaseLock();
+            responderPool.release(browsers);
+        }
+
+        JSONArray services = new JSONArray();
+        synchronized (this) {
+            for (ServiceRecord record : found.values()) {
+                services.put(jsonifyService(record));
+            }
+        }
+        return services;
+    }
+
+    private synchronized void found(ServiceInfo info) {
+        if (done.getCount() == 0) {
+            return;
+        }
+
+        ServiceRecord record = found.get(info.getKey());
+        if (record == null) {
+            found.put(info.getKey(), new ServiceRecord(info));
+        } else {
+            record.merge(new ServiceRecord(info));
+        }
+
+        if (maxResults > 0 && found.size() >= maxResults) {
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void serviceAdded(ServiceEvent ev) {
+        if (!resolve) {
+            found(ev.getInfo());
+        } else if (done.getCount() > 0) {
+            requestServiceInfo(ev.getDNS(), ev.getType(), ev.getName());
+        }
+    }
+
+    /**
+     * Events are dispatched on a single JmDNS thread, the request is sent from the responders' pool.
+     * Without timeout, JmDNS sends the queries and waits for the answers 200 ms at most, the service is then resolved by event.
+     */
+    private void requestServiceInfo(final JmDNS browser, final String type, final String name) {
+        host.getResponders().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (done.getCount() > 0) {
+                    browser.requestServiceInfo(type, name, false, 0);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void serviceRemoved(ServiceEvent ev) {
+    }
+
+    @Override
+    public void serviceResolved(ServiceEvent ev) {
+        if (resolve) {
+            found(ev.getInfo());
+        }
+    }
+
+}
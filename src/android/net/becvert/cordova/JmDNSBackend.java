@@ -0,0 +1,657 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+import static net.becvert.cordova.ServiceJson.jsonifyResults;
+
+/**
+ * The default backend: JmDNS instances run in the app process, one per network address.
+ * Publishing and browsing run on their own threads, in order: the managers are looked up by the queued actions,
+ * after the ones creating them.
+ */
+class JmDNSBackend implements ZeroConfBackend {
+
+    private static final String TAG = "ZeroConf";
+
+    private final ZeroConfHost host;
+    private final ResponderPool responderPool;
+    private final Responders responders;
+    private final Metrics metrics;
+
+    private final SerialExecutor registrationExecutor = new SerialExecutor("ZeroConf-Registration");
+    private final SerialExecutor browserExecutor = new SerialExecutor("ZeroConf-Browser");
+    private final AtomicReference<RegistrationManager> registrationManager = new AtomicReference<RegistrationManager>();
+    private final AtomicReference<BrowserManager> browserManager = new AtomicReference<BrowserManager>();
+
+    // services saved by the previous launch, until the browser manager is created, guarded by browserManager
+    private List<StoredService> restored;
+
+    public JmDNSBackend(ZeroConfHost host) {
+        this.host = host;
+        this.responderPool = host.getResponderPool();
+        this.responders = host.getResponders();
+        this.metrics = host.getMetrics();
+    }
+
+    @Override
+    public void register(final String type, final String domain, final String name, final int port, final JSONObject props,
+                         final String addressFamily, final String responderMode, final ResultCallback callback) {
+
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RegistrationManager rm = getRegistrationManager(addressFamily, responderMode);
+
+                    long start = host.elapsedRealtime();
+                    List<ResponderResult<ServiceInfo>> results = rm.register(type, domain, name, port, props);
+                    metrics.recordLatency(Metrics.REGISTER, host.elapsedRealtime() - start);
+
+                    ServiceInfo service = null;
+                    for (ResponderResult<ServiceInfo> result : results) {
+                        if (result.error == null) {
+                            service = result.value;
+                            break;
+                        }
+                    }
+                    if (service == null) {
+                        callback.error("Failed to register");
+                        return;
+                    }
+
+                    JSONObject status = new JSONObject();
+                    status.put("action", "registered");
+                    status.put("service", jsonifyService(service));
+                    status.put("interfaces", jsonifyResults(results));
+
+                    callback.success(status);
+
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void unregister(final String type, final String domain, final String name, final ResultCallback callback) {
+
+        registrationExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                RegistrationManager rm = registrationManager.get();
+                if (rm == null) {
+                    callback.success();
+                    return;
+                }
+
+                try {
+                    long start = host.elapsedRealtime();
+                    List<ResponderResult<Void>> results = rm.unregister(type, domain, name);
+                    metrics.recordLatency(Metrics.UNREGISTER, host.elapsedRealtime() - start);
+
+                    callback.success(jsonifyResults(results));
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void update(final String type, final String domain, final String name, final JSONObject props, final int coalesceInterval,
+                       final ResultCallback callback) {
+
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RegistrationManager rm = registrationManager.get();
+                if (rm == null) {
+                    callback.error("Service not registered");
+                    return;
+                }
+
+                try {
+                    rm.update(type, domain, name, props, coalesceInterval, callback);
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void registerAll(final JSONArray services, final String addressFamily, final String responderMode, final ResultCallback callback) {
+
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RegistrationManager rm = getRegistrationManager(addressFamily, responderMode);
+
+                    List<List<ResponderResult<ServiceInfo>>> results = rm.registerAll(services);
+
+                    JSONArray statuses = new JSONArray();
+                    for (int i = 0; i < results.size(); i++) {
+                        ServiceInfo service = null;
+                        for (ResponderResult<ServiceInfo> result : results.get(i)) {
+                            if (result.error == null) {
+                                service = result.value;
+                                break;
+                            }
+                        }
+
+                        JSONObject status = new JSONObject();
+                        if (service != null) {
+                            status.put("action", "registered");
+                            status.put("service", jsonifyService(service));
+                        } else {
+                            status.put("action", "failed");
+                            status.put("service", services.getJSONObject(i));
+                        }
+                        status.put("interfaces", jsonifyResults(results.get(i)));
+                        statuses.put(status);
+                    }
+
+                    callback.success(statuses);
+
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void unregisterAll(final JSONArray services, final ResultCallback callback) {
+
+        registrationExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                RegistrationManager rm = registrationManager.get();
+                if (rm == null) {
+                    callback.success(new JSONArray());
+                    return;
+                }
+
+                try {
+                    List<List<ResponderResult<Void>>> results = rm.unregisterAll(services);
+
+                    JSONArray statuses = new JSONArray();
+                    for (int i = 0; i < results.size(); i++) {
+                        JSONObject status = new JSONObject();
+                        status.put("service", services.getJSONObject(i));
+                        status.put("interfaces", jsonifyResults(results.get(i)));
+                        statuses.put(status);
+                    }
+
+                    callback.success(statuses);
+
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stop(final ResultCallback callback) {
+
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RegistrationManager rm = registrationManager.getAndSet(null);
+                if (rm == null) {
+                    callback.success();
+                    return;
+                }
+
+                try {
+                    callback.success(jsonifyResults(rm.stop()));
+
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void watch(final List<String> types, final String domain, final WatchOptions options, final ResultCallback callback) {
+
+        browserExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    BrowserManager bm = getBrowserManager(options.addressFamily, options.responderMode);
+
+                    bm.watch(getKeys(types, domain), new WatchCallback(callback, host.getScheduler(), metrics, options.batchInterval, options.batchSize, options.delta, options.lazy, options.filter));
+
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void unwatch(final List<String> types, final String domain, final ResultCallback callback) {
+
+        browserExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BrowserManager bm = browserManager.get();
+                if (bm != null) {
+                    bm.unwatch(getKeys(types, domain));
+                }
+                callback.success();
+            }
+        });
+    }
+
+    private static List<String> getKeys(List<String> types, String domain) {
+        List<String> keys = new ArrayList<String>();
+        for (String type : types) {
+            keys.add(type + domain);
+        }
+        return keys;
+    }
+
+    @Override
+    public void close(final ResultCallback callback) {
+
+        browserExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                BrowserManager bm = browserManager.getAndSet(null);
+                if (bm == null) {
+                    callback.success();
+                    return;
+                }
+
+                try {
+                    callback.success(jsonifyResults(bm.close()));
+
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void list(String type, String domain, ResultCallback callback) {
+
+        JSONArray services = new JSONArray();
+        final BrowserManager bm = browserManager.get();
+        if (bm != null) {
+            try {
+                services = bm.list(type, domain);
+            } catch (JSONException e) {
+                ZeroConfLog.e(TAG, e.getMessage(), e);
+                callback.error("Error: " + e.getMessage());
+                return;
+            }
+        }
+        callback.success(services);
+    }
+
+    @Override
+    public void discover(final String type, final String domain, final int timeout, final int maxResults, final boolean resolve,
+                         final String addressFamily, final String responderMode, final ResultCallback callback) {
+
+        // waits for the network, off the browser thread
+        responders.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Discovery discovery = new Discovery(host, type, domain, maxResults, resolve);
+                    callback.success(discovery.run(host.selectAddresses(addressFamily, responderMode), timeout));
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void resolve(final String type, final String domain, final String name, final int timeout,
+                        final String addressFamily, final String responderMode, final ResultCallback callback) {
+
+        // waits for the network, off the browser thread
+        responders.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = host.elapsedRealtime();
+                    ServiceRecord record = resolveRecord(type, domain, name, host.selectAddresses(addressFamily, responderMode), timeout);
+                    metrics.recordLatency(Metrics.RESOLVE, host.elapsedRealtime() - start);
+                    if (record != null) {
+                        callback.success(jsonifyService(record));
+                    } else {
+                        callback.error("Service not found");
+                    }
+                } catch (JSONException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void browseTypes(final String domain, final int timeout, final String addressFamily, final String responderMode, final ResultCallback callback) {
+
+        browserExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    BrowserManager bm = getBrowserManager(addressFamily, responderMode);
+
+                    bm.browseTypes(domain, timeout, callback);
+
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void watchTypes(final String domain, final String addressFamily, final String responderMode, final ResultCallback callback) {
+
+        browserExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    BrowserManager bm = getBrowserManager(addressFamily, responderMode);
+
+                    bm.watchTypes(domain, callback);
+
+                } catch (IOException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    ZeroConfLog.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void unwatchTypes(final String domain, final ResultCallback callback) {
+
+        browserExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BrowserManager bm = browserManager.get();
+                if (bm != null) {
+                    bm.unwatchTypes(domain);
+                }
+                callback.success();
+            }
+        });
+    }
+
+    /**
+     * Starts or stops JmDNS instances for the addresses that changed only, registrations and watches are kept.
+     */
+    @Override
+    public void updateAddresses(final ResultCallback callback) {
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RegistrationManager rm = registrationManager.get();
+                if (rm != null) {
+                    rm.updateAddresses();
+                }
+
+                browserExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        BrowserManager bm = browserManager.get();
+                        if (bm != null) {
+                            bm.updateAddresses();
+                        }
+                        if (callback != null) {
+                            callback.success();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void suspend() {
+        browserExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BrowserManager bm = browserManager.get();
+                if (bm != null) {
+                    bm.suspend();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void resume() {
+        browserExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BrowserManager bm = browserManager.get();
+                if (bm != null) {
+                    bm.resume();
+                }
+            }
+        });
+    }
+
+    @Override
+    public List<StoredService> getServices() {
+        BrowserManager bm = browserManager.get();
+        if (bm != null) {
+            return bm.getServices();
+        }
+        synchronized (browserManager) {
+            return restored != null ? restored : new ArrayList<StoredService>();
+        }
+    }
+
+    @Override
+    public void restoreServices(List<StoredService> entries) {
+        synchronized (browserManager) {
+            BrowserManager bm = browserManager.get();
+            if (bm != null) {
+                bm.restore(entries);
+            } else {
+                restored = entries;
+            }
+        }
+    }
+
+    @Override
+    public void getStats(JSONObject stats) throws JSONException {
+        stats.put("registration", registrationExecutor.getStats());
+        stats.put("browsing", browserExecutor.getStats());
+        JSONObject jmdnsStats = new JSONObject();
+        jmdnsStats.put("instances", responderPool.size());
+        jmdnsStats.put("threads", countJmDNSThreads());
+        stats.put("jmdns", jmdnsStats);
+    }
+
+    @Override
+    public void destroy() {
+        RegistrationManager rm = registrationManager.getAndSet(null);
+        if (rm != null) {
+            rm.stop();
+        }
+        BrowserManager bm = browserManager.getAndSet(null);
+        if (bm != null) {
+            bm.close();
+        }
+        registrationExecutor.shutdown();
+        browserExecutor.shutdown();
+    }
+
+    /**
+     * JmDNS runs a timer and a few executors per instance, their threads are all named after it.
+     * Threads are enumerated from the root group, without capturing their stacks.
+     */
+    private static int countJmDNSThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+
+        Thread[] threads;
+        int size;
+        do {
+            threads = new Thread[root.activeCount() * 2 + 1];
+            size = root.enumerate(threads, true);
+        } while (size == threads.length);
+
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (threads[i].getName().startsWith("JmDNS")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The managers are created once, even when several actions run concurrently.
+     */
+    private RegistrationManager getRegistrationManager(String addressFamily, String responderMode) throws IOException {
+        RegistrationManager rm = registrationManager.get();
+        if (rm == null) {
+            synchronized (registrationManager) {
+                rm = registrationManager.get();
+                if (rm == null) {
+                    rm = new RegistrationManager(host, registrationExecutor, addressFamily, responderMode);
+                    registrationManager.set(rm);
+                }
+            }
+        }
+        return rm;
+    }
+
+    private BrowserManager getBrowserManager(String addressFamily, String responderMode) throws IOException {
+        BrowserManager bm = browserManager.get();
+        if (bm == null) {
+            synchronized (browserManager) {
+                bm = browserManager.get();
+                if (bm == null) {
+                    bm = new BrowserManager(host, addressFamily, responderMode);
+                    if (restored != null) {
+                        bm.restore(restored);
+                        restored = null;
+                    }
+                    browserManager.set(bm);
+                }
+            }
+        }
+        return bm;
+    }
+
+    /**
+     * Resolves a single service instance on all the instances of the addresses, merging what each of them got.
+     * Returns null when none of them could resolve it within the timeout.
+     */
+    private ServiceRecord resolveRecord(final String type, final String domain, final String name, List<InetAddress> addresses,
+                                        final int timeout) throws IOException {
+
+        List<JmDNS> browsers = responderPool.acquire(responderPool.keysFor(addresses), host.getHostname());
+        host.acquireLock();
+        List<ResponderResult<ServiceInfo>> results;
+        try {
+            results = responders.fanOut(browsers, new ResponderTask<ServiceInfo>() {
+                @Override
+                public ServiceInfo call(JmDNS browser) {
+                    return browser.getServiceInfo(type + domain, name, timeout);
+                }
+            });
+        } finally {
+            host.releaseLock();
+            responderPool.release(browsers);
+        }
+
+        ServiceRecord record = null;
+        for (ResponderResult<ServiceInfo> result : results) {
+            if (result.value == null || !result.value.hasData()) {
+                continue;
+            }
+            if (record == null) {
+                record = new ServiceRecord(result.value);
+            } else {
+                record.merge(new ServiceRecord(result.value));
+            }
+        }
+        return record;
+    }
+
+}
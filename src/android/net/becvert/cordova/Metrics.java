@@ -0,0 +1,135 @@
+package net.becvert.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the plugin, reported by getStats.
+ */
+class Metrics {
+
+    static final String REGISTER = "register";
+    static final String UNREGISTER = "unregister";
+    static final String RESOLVE = "resolve";
+
+    private final ConcurrentHashMap<String, AtomicLong> eventsReceivedByType = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> eventsReceivedByInterface = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> eventsDeliveredByType = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong bridgeMessages = new AtomicLong();
+    private final AtomicLong jsonBytes = new AtomicLong();
+    private final Map<String, Histogram> latencies = new LinkedHashMap<String, Histogram>();
+
+    public Metrics() {
+        latencies.put(REGISTER, new Histogram());
+        latencies.put(UNREGISTER, new Histogram());
+        latencies.put(RESOLVE, new Histogram());
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public void eventReceived(String type, InetAddress address) {
+        increment(eventsReceivedByType, type);
+        increment(eventsReceivedByInterface, address != null ? address.getHostAddress() : "any");
+    }
+
+    public void eventDelivered(String type) {
+        increment(eventsDeliveredByType, type);
+    }
+
+    /**
+     * The message as encoded for the bridge.
+     */
+    public void messageSent(String message) {
+        bridgeMessages.incrementAndGet();
+        if (message != null) {
+            jsonBytes.addAndGet(message.length());
+        }
+    }
+
+    public void recordLatency(String operation, long latency) {
+        latencies.get(operation).record(latency);
+    }
+
+    private static JSONObject toJSON(Map<String, AtomicLong> counters) throws JSONException {
+        JSONObject obj = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            obj.put(entry.getKey(), entry.getValue().get());
+        }
+        return obj;
+    }
+
+    public void toJSON(JSONObject stats) throws JSONException {
+        JSONObject events = new JSONObject();
+        events.put("receivedByType", toJSON(eventsReceivedByType));
+        events.put("receivedByInterface", toJSON(eventsReceivedByInterface));
+        events.put("deliveredByType", toJSON(eventsDeliveredByType));
+        stats.put("events", events);
+
+        JSONObject bridge = new JSONObject();
+        bridge.put("messages", bridgeMessages.get());
+        bridge.put("jsonBytes", jsonBytes.get());
+        stats.put("bridge", bridge);
+
+        JSONObject latency = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            latency.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        stats.put("latency", latency);
+    }
+
+    /**
+     * Latencies counted in buckets of increasing upper bounds, in ms.
+     */
+    private static class Histogram {
+
+        private static final long[] BOUNDS = { 10, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+        private final long[] counts = new long[BOUNDS.length + 1];
+        private long count;
+        private long total;
+        private long max;
+
+        public synchronized void record(long latency) {
+            int i = 0;
+            while (i < BOUNDS.length && latency > BOUNDS[i]) {
+                i++;
+            }
+            counts[i]++;
+            count++;
+            total += latency;
+            max = Math.max(max, latency);
+        }
+
+        public synchronized JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("count", count);
+            obj.put("average", count > 0 ? total / count : 0);
+            obj.put("max", max);
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < BOUNDS.length; i++) {
+                buckets.put("<=" + BOUNDS[i], counts[i]);
+            }
+            buckets.put(">" + BOUNDS[BOUNDS.length - 1], counts[BOUNDS.length]);
+            obj.put("buckets", buckets);
+            return obj;
+        }
+
+    }
+
+}
@@ -0,0 +1,618 @@
+package net.becvert.cordova;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+
+/**
+ * Delegates to the platform's mDNS daemon through NsdManager: the plugin opens no socket and runs no mDNS thread,
+ * and the daemon's cache is shared by all the apps.
+ * The daemon publishes and browses on all the interfaces at once, so the address family and responder mode
+ * do not apply, and it only knows the local. domain. Actions that need JmDNS fail with "Not supported".
+ */
+class NsdBackend implements ZeroConfBackend {
+
+    private static final String TAG = "ZeroConf";
+
+    private static final String LOCAL_DOMAIN = "local.";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final NsdManager nsdManager;
+    private final ZeroConfHost host;
+
+    // registered services, by key
+    private final Map<String, NsdManager.RegistrationListener> registrations = new ConcurrentHashMap<String, NsdManager.RegistrationListener>();
+
+    // by type + domain
+    private final ConcurrentMap<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+
+    // the daemon resolves one service at a time, and fails the others
+    private final LinkedList<PendingResolve> pendingResolves = new LinkedList<PendingResolve>();
+    private boolean resolving;
+
+    public NsdBackend(Context context, ZeroConfHost host) {
+        this.nsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        this.host = host;
+    }
+
+    @Override
+    public void register(final String type, final String domain, final String name, final int port, JSONObject props,
+                         String addressFamily, String responderMode, final ResultCallback callback) {
+
+        if (!LOCAL_DOMAIN.equalsIgnoreCase(domain)) {
+            callback.error("Only the " + LOCAL_DOMAIN + " domain is supported");
+            return;
+        }
+
+        final ServiceRecord record = new ServiceRecord(domain, type, name);
+        record.port = port;
+
+        NsdServiceInfo info = new NsdServiceInfo();
+        info.setServiceName(name);
+        info.setServiceType(toNsdType(type));
+        info.setPort(port);
+        if (props != null) {
+            try {
+                Iterator<String> iter = props.keys();
+                while (iter.hasNext()) {
+                    String key = iter.next();
+                    info.setAttribute(key, props.getString(key));
+                    record.txtRecord.put(key, props.getString(key));
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, e.getMessage(), e);
+                callback.error("Error: " + e.getMessage());
+                return;
+            }
+        }
+
+        final String key = getKey(type, domain, name);
+        NsdManager.RegistrationListener listener = new NsdManager.RegistrationListener() {
+
+            @Override
+            public void onServiceRegistered(NsdServiceInfo registered) {
+                try {
+                    // the name may have been changed by the daemon to resolve a conflict
+                    ServiceRecord service = new ServiceRecord(domain, type, registered.getServiceName());
+                    service.port = record.port;
+                    service.txtRecord.putAll(record.txtRecord);
+
+                    JSONObject status = new JSONObject();
+                    status.put("action", "registered");
+                    status.put("service", jsonifyService(service));
+                    callback.success(status);
+                } catch (JSONException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onRegistrationFailed(NsdServiceInfo info, int errorCode) {
+                registrations.remove(key);
+                callback.error("Failed to register: " + errorCode);
+            }
+
+            @Override
+            public void onServiceUnregistered(NsdServiceInfo info) {
+                Log.d(TAG, "Unregistered " + info.getServiceName());
+            }
+
+            @Override
+            public void onUnregistrationFailed(NsdServiceInfo info, int errorCode) {
+                Log.e(TAG, "Failed to unregister " + info.getServiceName() + ": " + errorCode);
+            }
+        };
+
+        NsdManager.RegistrationListener previous = registrations.put(key, listener);
+        if (previous != null) {
+            unregisterService(previous);
+        }
+        nsdManager.registerService(info, NsdManager.PROTOCOL_DNS_SD, listener);
+    }
+
+    @Override
+    public void unregister(String type, String domain, String name, ResultCallback callback) {
+        NsdManager.RegistrationListener listener = registrations.remove(getKey(type, domain, name));
+        if (listener != null) {
+            unregisterService(listener);
+        }
+        callback.success(new JSONArray());
+    }
+
+    @Override
+    public void update(String type, String domain, String name, JSONObject props, int coalesceInterval, ResultCallback callback) {
+        callback.error("Not supported by the nsd backend");
+    }
+
+    @Override
+    public void registerAll(JSONArray services, String addressFamily, String responderMode, ResultCallback callback) {
+        callback.error("Not supported by the nsd backend");
+    }
+
+    @Override
+    public void unregisterAll(JSONArray services, ResultCallback callback) {
+        callback.error("Not supported by the nsd backend");
+    }
+
+    @Override
+    public void stop(ResultCallback callback) {
+        unregisterAll();
+        callback.success(new JSONArray());
+    }
+
+    private void unregisterAll() {
+        for (NsdManager.RegistrationListener listener : new ArrayList<NsdManager.RegistrationListener>(registrations.values())) {
+            unregisterService(listener);
+        }
+        registrations.clear();
+    }
+
+    private void unregisterService(NsdManager.RegistrationListener listener) {
+        try {
+            nsdManager.unregisterService(listener);
+        } catch (IllegalArgumentException e) {
+            // registration failed, or not completed yet
+            Log.w(TAG, e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void watch(List<String> types, String domain, WatchOptions options, ResultCallback callback) {
+
+        if (!LOCAL_DOMAIN.equalsIgnoreCase(domain)) {
+            callback.error("Only the " + LOCAL_DOMAIN + " domain is supported");
+            return;
+        }
+
+        WatchCallback watchCallback = new WatchCallback(callback, host.getScheduler(), host.getMetrics(),
+                options.batchInterval, options.batchSize, options.delta, options.lazy, options.filter);
+
+        for (String type : types) {
+            Watch watch = new Watch(type, domain, watchCallback, callback);
+
+            Watch previous = watches.put(type + domain, watch);
+            if (previous != null) {
+                previous.stop();
+                releaseCallback(previous.callback);
+            }
+            watch.start();
+        }
+    }
+
+    @Override
+    public void unwatch(List<String> types, String domain, ResultCallback callback) {
+        for (String type : types) {
+            Watch watch = watches.remove(type + domain);
+            if (watch != null) {
+                watch.stop();
+                releaseCallback(watch.callback);
+            }
+        }
+        callback.success();
+    }
+
+    private void releaseCallback(WatchCallback callback) {
+        for (Watch watch : watches.values()) {
+            if (watch.callback == callback) {
+                return;
+            }
+        }
+        // none of its types is watched anymore
+        callback.cancel();
+    }
+
+    @Override
+    public void close(ResultCallback callback) {
+        closeAll();
+        callback.success(new JSONArray());
+    }
+
+    private void closeAll() {
+        for (Watch watch : watches.values()) {
+            watch.stop();
+            watch.callback.cancel();
+        }
+        watches.clear();
+    }
+
+    @Override
+    public void list(String type, String domain, ResultCallback callback) {
+        JSONArray list = new JSONArray();
+        try {
+            for (Watch watch : watches.values()) {
+                if (type == null || type.isEmpty() || (watch.type + watch.domain).equalsIgnoreCase(type + domain)) {
+                    synchronized (watch) {
+                        for (ServiceRecord record : watch.services.values()) {
+                            if (watch.callback.accepts(record)) {
+                                list.put(jsonifyService(record));
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.getMessage(), e);
+            callback.error("Error: " + e.getMessage());
+            return;
+        }
+        callback.success(list);
+    }
+
+    @Override
+    public void discover(String type, String domain, int timeout, int maxResults, boolean resolve,
+                         String addressFamily, String responderMode, ResultCallback callback) {
+        callback.error("Not supported by the nsd backend");
+    }
+
+    @Override
+    public void resolve(final String type, final String domain, String name, int timeout,
+                        String addressFamily, String responderMode, final ResultCallback callback) {
+
+        NsdServiceInfo info = new NsdServiceInfo();
+        info.setServiceName(name);
+        info.setServiceType(toNsdType(type));
+
+        final AtomicBoolean done = new AtomicBoolean();
+        if (timeout > 0) {
+            host.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (done.compareAndSet(false, true)) {
+                        callback.error("Service not found");
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        enqueueResolve(info, new NsdManager.ResolveListener() {
+
+            @Override
+            public void onServiceResolved(NsdServiceInfo info) {
+                if (!done.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    callback.success(jsonifyService(toRecord(type, domain, info)));
+                } catch (JSONException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    callback.error("Error: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onResolveFailed(NsdServiceInfo info, int errorCode) {
+                if (done.compareAndSet(false, true)) {
+                    callback.error("Service not found");
+                }
+            }
+        });
+    }
+
+    @Override
+    public void browseTypes(String domain, int timeout, String addressFamily, String responderMode, ResultCallback callback) {
+        callback.error("Not supported by the nsd backend");
+    }
+
+    @Override
+    public void watchTypes(String domain, String addressFamily, String responderMode, ResultCallback callback) {
+        callback.error("Not supported by the nsd backend");
+    }
+
+    @Override
+    public void unwatchTypes(String domain, ResultCallback callback) {
+        callback.success();
+    }
+
+    /**
+     * The daemon follows the network changes itself.
+     */
+    @Override
+    public void updateAddresses(ResultCallback callback) {
+        if (callback != null) {
+            callback.success();
+        }
+    }
+
+    @Override
+    public void suspend() {
+        for (Watch watch : watches.values()) {
+            watch.stopDiscovery();
+        }
+    }
+
+    @Override
+    public void resume() {
+        for (Watch watch : watches.values()) {
+            watch.start();
+        }
+    }
+
+    @Override
+    public List<StoredService> getServices() {
+        return new ArrayList<StoredService>();
+    }
+
+    /**
+     * The daemon keeps its own cache across launches.
+     */
+    @Override
+    public void restoreServices(List<StoredService> entries) {
+    }
+
+    @Override
+    public void getStats(JSONObject stats) throws JSONException {
+        JSONObject nsdStats = new JSONObject();
+        nsdStats.put("registrations", registrations.size());
+        nsdStats.put("watches", watches.size());
+        synchronized (pendingResolves) {
+            nsdStats.put("pendingResolves", pendingResolves.size());
+        }
+        stats.put("nsd", nsdStats);
+    }
+
+    @Override
+    public void destroy() {
+        unregisterAll();
+        closeAll();
+    }
+
+    private void enqueueResolve(NsdServiceInfo info, NsdManager.ResolveListener listener) {
+        synchronized (pendingResolves) {
+            pendingResolves.add(new PendingResolve(info, listener));
+            if (!resolving) {
+                resolveNext();
+            }
+        }
+    }
+
+    // holding pendingResolves
+    private void resolveNext() {
+        final PendingResolve next = pendingResolves.poll();
+        resolving = next != null;
+        if (next == null) {
+            return;
+        }
+
+        nsdManager.resolveService(next.info, new NsdManager.ResolveListener() {
+
+            @Override
+            public void onServiceResolved(NsdServiceInfo info) {
+                next.listener.onServiceResolved(info);
+                synchronized (pendingResolves) {
+                    resolveNext();
+                }
+            }
+
+            @Override
+            public void onResolveFailed(NsdServiceInfo info, int errorCode) {
+                next.listener.onResolveFailed(info, errorCode);
+                synchronized (pendingResolves) {
+                    resolveNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * "_http._tcp." is "_http._tcp" for NsdManager, and the subtype "_printer._sub._http._tcp." is "_http._tcp,_printer".
+     */
+    private static String toNsdType(String type) {
+        String nsdType = type.endsWith(".") ? type.substring(0, type.length() - 1) : type;
+        int sub = nsdType.indexOf("._sub.");
+        if (sub > 0) {
+            nsdType = nsdType.substring(sub + "._sub.".length()) + "," + nsdType.substring(0, sub);
+        }
+        return nsdType;
+    }
+
+    /**
+     * The services of a subtype are reported with their base type.
+     */
+    private static String getServiceType(String type) {
+        int sub = type.indexOf("._sub.");
+        return sub > 0 ? type.substring(sub + "._sub.".length()) : type;
+    }
+
+    private static String getKey(String type, String domain, String name) {
+        return (name + "." + type + domain).toLowerCase();
+    }
+
+    /**
+     * The daemon gives one address, and no host name.
+     */
+    private static ServiceRecord toRecord(String type, String domain, NsdServiceInfo info) {
+        ServiceRecord record = new ServiceRecord(domain, type, info.getServiceName());
+        record.port = info.getPort();
+
+        InetAddress address = info.getHost();
+        if (address instanceof Inet4Address) {
+            record.ipv4Addresses.add(address.getHostAddress());
+        } else if (address instanceof Inet6Address) {
+            record.ipv6Addresses.add(address.getHostAddress());
+        }
+
+        Map<String, byte[]> attributes = info.getAttributes();
+        if (attributes != null) {
+            for (Map.Entry<String, byte[]> entry : attributes.entrySet()) {
+                byte[] value = entry.getValue();
+                record.txtRecord.put(entry.getKey(), value != null ? new String(value, UTF_8) : "");
+            }
+        }
+        return record;
+    }
+
+    /**
+     * The services of a watched type, resolved one after the other unless the watch is lazy.
+     */
+    private class Watch {
+
+        private final String type;
+        private final String serviceType;
+        private final String domain;
+        private final WatchCallback callback;
+        private final ResultCallback result;
+
+        // by key, guarded by this
+        private final Map<String, ServiceRecord> services = new HashMap<String, ServiceRecord>();
+
+        private NsdManager.DiscoveryListener listener;
+
+        public Watch(String type, String domain, WatchCallback callback, ResultCallback result) {
+            this.type = type;
+            this.serviceType = getServiceType(type);
+            this.domain = domain;
+            this.callback = callback;
+            this.result = result;
+        }
+
+        public synchronized void start() {
+            if (listener != null) {
+                return;
+            }
+
+            listener = new NsdManager.DiscoveryListener() {
+
+                @Override
+                public void onDiscoveryStarted(String nsdType) {
+                    Log.d(TAG, "Discovery started " + nsdType);
+                }
+
+                @Override
+                public void onStartDiscoveryFailed(String nsdType, int errorCode) {
+                    if (watches.remove(type + domain, Watch.this)) {
+                        releaseCallback(callback);
+                    }
+                    result.error("Failed to watch: " + errorCode);
+                }
+
+                @Override
+                public void onDiscoveryStopped(String nsdType) {
+                    Log.d(TAG, "Discovery stopped " + nsdType);
+                }
+
+                @Override
+                public void onStopDiscoveryFailed(String nsdType, int errorCode) {
+                    Log.e(TAG, "Failed to stop discovery " + nsdType + ": " + errorCode);
+                }
+
+                @Override
+                public void onServiceFound(NsdServiceInfo info) {
+                    serviceFound(info);
+                }
+
+                @Override
+                public void onServiceLost(NsdServiceInfo info) {
+                    serviceLost(info);
+                }
+            };
+            nsdManager.discoverServices(toNsdType(type), NsdManager.PROTOCOL_DNS_SD, listener);
+        }
+
+        public synchronized void stopDiscovery() {
+            if (listener == null) {
+                return;
+            }
+            try {
+                nsdManager.stopServiceDiscovery(listener);
+            } catch (IllegalArgumentException e) {
+                // discovery failed to start
+                Log.w(TAG, e.getMessage(), e);
+            }
+            listener = null;
+        }
+
+        public void stop() {
+            stopDiscovery();
+            synchronized (this) {
+                services.clear();
+            }
+        }
+
+        private void serviceFound(NsdServiceInfo info) {
+            host.getMetrics().eventReceived(type + domain, null);
+
+            ServiceRecord record = new ServiceRecord(domain, serviceType, info.getServiceName());
+            synchronized (this) {
+                if (services.containsKey(record.getKey())) {
+                    return;
+                }
+                services.put(record.getKey(), record);
+            }
+            callback.send("added", record);
+
+            if (callback.lazy) {
+                return;
+            }
+            enqueueResolve(info, new NsdManager.ResolveListener() {
+
+                @Override
+                public void onServiceResolved(NsdServiceInfo info) {
+                    ServiceRecord record = toRecord(serviceType, domain, info);
+                    synchronized (Watch.this) {
+                        if (watches.get(type + domain) != Watch.this || !services.containsKey(record.getKey())) {
+                            // unwatched or lost in the meantime
+                            return;
+                        }
+                        services.put(record.getKey(), record);
+                    }
+                    callback.send("resolved", record);
+                }
+
+                @Override
+                public void onResolveFailed(NsdServiceInfo info, int errorCode) {
+                    Log.w(TAG, "Failed to resolve " + info.getServiceName() + ": " + errorCode);
+                }
+            });
+        }
+
+        private void serviceLost(NsdServiceInfo info) {
+            host.getMetrics().eventReceived(type + domain, null);
+
+            ServiceRecord record;
+            synchronized (this) {
+                record = services.remove(new ServiceRecord(domain, serviceType, info.getServiceName()).getKey());
+            }
+            if (record != null) {
+                callback.send("removed", record);
+            }
+        }
+
+    }
+
+    private static class PendingResolve {
+
+        private final NsdServiceInfo info;
+        private final NsdManager.ResolveListener listener;
+
+        public PendingResolve(NsdServiceInfo info, NsdManager.ResolveListener listener) {
+            this.info = info;
+            this.listener = listener;
+        }
+
+    }
+
+}
@@ -0,0 +1,28 @@
+package net.becvert.cordova;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+
+/**
+ * A service as requested by javascript, and the ServiceInfo registered for it on each publisher.
+ */
+class Registration {
+
+    final String type;
+    final String domain;
+    final String name;
+    volatile int port;
+    volatile Map<String, String> txtRecord;
+
+    final Map<JmDNS, ServiceInfo> services = new ConcurrentHashMap<JmDNS, ServiceInfo>();
+
+    public Registration(String type, String domain, String name) {
+        this.type = type;
+        this.domain = domain;
+        this.name = name;
+    }
+
+}
@@ -0,0 +1,393 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.ServiceInfoImpl;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+import static net.becvert.cordova.ServiceJson.jsonifyResults;
+import static net.becvert.cordova.ServiceJson.toTxtRecord;
+
+/**
+ * Publishes the registered services on every JmDNS instance, and keeps them published across network changes.
+ */
+class RegistrationManager {
+
+    private static final String TAG = "ZeroConf";
+
+    // probing and announcing a service take about 3 s
+    private static final long ANNOUNCE_TIMEOUT = 6000;
+
+    private final ZeroConfHost host;
+    private final SerialExecutor executor;
+    private final ResponderPool responderPool;
+    private final Responders responders;
+
+    private final String addressFamily;
+    private final String responderMode;
+
+    private final List<JmDNS> publishers = new CopyOnWriteArrayList<JmDNS>();
+
+    // registered services, by key
+    private final Map<String, Registration> registered = new ConcurrentHashMap<String, Registration>();
+
+    // TXT records waiting to be applied, by key, guarded by itself
+    private final Map<String, PendingUpdate> pendingUpdates = new HashMap<String, PendingUpdate>();
+
+    private volatile boolean stopped;
+
+    /**
+     * The executor is the one the actions on the manager run on, the coalesced updates are applied there too.
+     */
+    public RegistrationManager(ZeroConfHost host, SerialExecutor executor, String addressFamily, String responderMode) throws IOException {
+
+        this.host = host;
+        this.executor = executor;
+        this.responderPool = host.getResponderPool();
+        this.responders = host.getResponders();
+        this.addressFamily = addressFamily;
+        this.responderMode = responderMode;
+        publishers.addAll(responderPool.acquire(responderPool.keysFor(host.selectAddresses(addressFamily, responderMode)), host.getHostname()));
+
+    }
+
+    /**
+     * Releases the instances of the addresses that are gone, and registers the services on the new ones.
+     */
+    public void updateAddresses() {
+
+        if (stopped) {
+            return;
+        }
+
+        List<InetAddress> keys = responderPool.keysFor(host.selectAddresses(addressFamily, responderMode));
+        List<JmDNS> removed = new ArrayList<JmDNS>();
+        for (JmDNS publisher : publishers) {
+            if (!keys.remove(responderPool.addressOf(publisher))) {
+                removed.add(publisher);
+            }
+        }
+        if (removed.isEmpty() && keys.isEmpty()) {
+            return;
+        }
+
+        ZeroConfLog.d(TAG, "Publishers removed " + removed.size() + ", added " + keys.size());
+
+        publishers.removeAll(removed);
+        for (Registration registration : registered.values()) {
+            registration.services.keySet().removeAll(removed);
+        }
+        responderPool.release(removed);
+
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<JmDNS> added;
+        try {
+            added = responderPool.acquire(keys, host.getHostname());
+        } catch (IOException e) {
+            ZeroConfLog.e(TAG, e.getMessage(), e);
+            return;
+        }
+        publishers.addAll(added);
+
+        List<List<Future<ServiceInfo>>> futures = new ArrayList<List<Future<ServiceInfo>>>();
+        for (Registration registration : registered.values()) {
+            futures.add(submitRegister(added, registration));
+        }
+        for (List<Future<ServiceInfo>> serviceFutures : futures) {
+            responders.collect(added, serviceFutures);
+        }
+    }
+
+    public List<ResponderResult<ServiceInfo>> register(String type, String domain, String name, int port, JSONObject props) throws JSONException {
+
+        if (stopped) {
+            throw new IllegalStateException("Publisher stopped");
+        }
+
+        // registering returns once JmDNS has started probing, on each instance
+        List<JmDNS> targets = new ArrayList<JmDNS>(publishers);
+        Registration registration = getRegistration(type, domain, name, port, toTxtRecord(props));
+        List<ResponderResult<ServiceInfo>> results = responders.collect(targets, submitRegister(targets, registration));
+        forgetIfUnregistered(registration);
+        return results;
+    }
+
+    /**
+     * Services are registered all at once. JmDNS starts a prober per registered service,
+     * which takes over the services of the instance not probed yet: services registered at the same time
+     * may then be probed and announced in shared packets, depending on timing.
+     */
+    public List<List<ResponderResult<ServiceInfo>>> registerAll(JSONArray services) throws JSONException {
+
+        if (stopped) {
+            throw new IllegalStateException("Publisher stopped");
+        }
+
+        List<JmDNS> targets = new ArrayList<JmDNS>(publishers);
+        List<Registration> registrations = new ArrayList<Registration>();
+        List<List<Future<ServiceInfo>>> futures = new ArrayList<List<Future<ServiceInfo>>>();
+        for (int i = 0; services != null && i < services.length(); i++) {
+            JSONObject service = services.getJSONObject(i);
+            Registration registration = getRegistration(service.optString("type"), service.optString("domain"), service.optString("name"),
+                    service.optInt("port"), toTxtRecord(service.optJSONObject("txtRecord")));
+            registrations.add(registration);
+            futures.add(submitRegister(targets, registration));
+        }
+
+        List<List<ResponderResult<ServiceInfo>>> results = new ArrayList<List<ResponderResult<ServiceInfo>>>();
+        for (int i = 0; i < futures.size(); i++) {
+            results.add(responders.collect(targets, futures.get(i)));
+            forgetIfUnregistered(registrations.get(i));
+        }
+        return results;
+    }
+
+    private List<Future<ServiceInfo>> submitRegister(List<JmDNS> targets, final Registration registration) {
+
+        return responders.submit(targets, new ResponderTask<ServiceInfo>() {
+            @Override
+            public ServiceInfo call(JmDNS publisher) throws IOException {
+                // registered again, JmDNS would otherwise publish a renamed copy next to the previous one
+                ServiceInfo previous = registration.services.remove(publisher);
+                if (previous != null) {
+                    publisher.unregisterService(previous);
+                }
+                ServiceInfo service = ServiceInfo.create(registration.type + registration.domain, registration.name,
+                        registration.port, 0, 0, registration.txtRecord);
+                publisher.registerService(service);
+                // the name may have been changed by JmDNS to resolve a conflict
+                registration.services.put(publisher, service);
+                return service;
+            }
+        });
+    }
+
+    private Registration getRegistration(String type, String domain, String name, int port, Map<String, String> txtRecord) {
+        String key = (name + "." + type + domain).toLowerCase();
+        synchronized (registered) {
+            Registration registration = registered.get(key);
+            if (registration == null) {
+                registration = new Registration(type, domain, name);
+                registered.put(key, registration);
+            }
+            registration.port = port;
+            registration.txtRecord = txtRecord;
+            return registration;
+        }
+    }
+
+    /**
+     * A registration that no publisher accepted is not registered again on the new addresses.
+     */
+    private void forgetIfUnregistered(Registration registration) {
+        String key = (registration.name + "." + registration.type + registration.domain).toLowerCase();
+        synchronized (registered) {
+            if (registration.services.isEmpty() && registered.get(key) == registration) {
+                registered.remove(key);
+            }
+        }
+    }
+
+    public List<ResponderResult<Void>> unregister(String type, String domain, String name) {
+
+        List<JmDNS> targets = new ArrayList<JmDNS>(publishers);
+        return responders.collect(targets, submitUnregister(targets, type, domain, name));
+
+    }
+
+    public List<List<ResponderResult<Void>>> unregisterAll(JSONArray services) throws JSONException {
+
+        List<JmDNS> targets = new ArrayList<JmDNS>(publishers);
+        List<List<Future<Void>>> futures = new ArrayList<List<Future<Void>>>();
+        for (int i = 0; services != null && i < services.length(); i++) {
+            JSONObject service = services.getJSONObject(i);
+            futures.add(submitUnregister(targets, service.optString("type"), service.optString("domain"), service.optString("name")));
+        }
+
+        List<List<ResponderResult<Void>>> results = new ArrayList<List<ResponderResult<Void>>>();
+        for (List<Future<Void>> serviceFutures : futures) {
+            results.add(responders.collect(targets, serviceFutures));
+        }
+        return results;
+    }
+
+    /**
+     * Changes the TXT record in place. JmDNS then announces all the records of the service again, twice,
+     * its PTR, SRV and address records along with the new TXT record: there is no TXT-only announcement.
+     * With a coalesce interval, the updates received in the meantime are merged into the last one.
+     */
+    public void update(String type, String domain, String name, JSONObject props, int coalesceInterval, ResultCallback callback) throws JSONException {
+
+        final String key = (name + "." + type + domain).toLowerCase();
+        if (!registered.containsKey(key)) {
+            callback.error("Service not registered");
+            return;
+        }
+
+        Map<String, String> txtRecord = toTxtRecord(props);
+        if (coalesceInterval <= 0) {
+            sendUpdated(applyUpdate(key, txtRecord), Collections.singletonList(callback));
+            return;
+        }
+
+        synchronized (pendingUpdates) {
+            PendingUpdate pending = pendingUpdates.get(key);
+            if (pending == null) {
+                pending = new PendingUpdate();
+                pendingUpdates.put(key, pending);
+                // the scheduler is shared, it only hands the update back to the executor
+                host.getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                applyPendingUpdate(key);
+                            }
+                        });
+                    }
+                }, coalesceInterval, TimeUnit.MILLISECONDS);
+            }
+            pending.txtRecord = txtRecord;
+            pending.callbacks.add(callback);
+        }
+    }
+
+    private void applyPendingUpdate(String key) {
+
+        PendingUpdate pending;
+        synchronized (pendingUpdates) {
+            pending = pendingUpdates.remove(key);
+        }
+        if (pending == null) {
+            // dropped by stop
+            return;
+        }
+        sendUpdated(applyUpdate(key, pending.txtRecord), pending.callbacks);
+    }
+
+    private List<ResponderResult<ServiceInfo>> applyUpdate(String key, final Map<String, String> txtRecord) {
+
+        Registration registration = registered.get(key);
+        if (registration == null) {
+            // unregistered in the meantime
+            return new ArrayList<ResponderResult<ServiceInfo>>();
+        }
+        // kept for the instances started later on
+        registration.txtRecord = txtRecord;
+
+        final Map<JmDNS, ServiceInfo> services = registration.services;
+        return responders.fanOut(new ArrayList<JmDNS>(publishers), new ResponderTask<ServiceInfo>() {
+            @Override
+            public ServiceInfo call(JmDNS publisher) {
+                ServiceInfo service = services.get(publisher);
+                if (service != null) {
+                    if (service instanceof ServiceInfoImpl) {
+                        // changing the TXT record while JmDNS probes or announces the service stops its announcements
+                        ((ServiceInfoImpl) service).waitForAnnounced(ANNOUNCE_TIMEOUT);
+                    }
+                    service.setText(txtRecord);
+                }
+                return service;
+            }
+        });
+    }
+
+    private void sendUpdated(List<ResponderResult<ServiceInfo>> results, List<ResultCallback> callbacks) {
+
+        ServiceInfo service = null;
+        for (ResponderResult<ServiceInfo> result : results) {
+            if (result.error == null && result.value != null) {
+                service = result.value;
+                break;
+            }
+        }
+
+        for (ResultCallback callback : callbacks) {
+            if (service == null) {
+                callback.error("Failed to update");
+                continue;
+            }
+            try {
+                JSONObject status = new JSONObject();
+                status.put("action", "updated");
+                status.put("service", jsonifyService(service));
+                status.put("interfaces", jsonifyResults(results));
+                callback.success(status);
+            } catch (JSONException e) {
+                ZeroConfLog.e(TAG, e.getMessage(), e);
+                callback.error("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    private List<Future<Void>> submitUnregister(List<JmDNS> targets, String type, String domain, String name) {
+
+        final Registration registration = registered.remove((name + "." + type + domain).toLowerCase());
+        return responders.submit(targets, new ResponderTask<Void>() {
+            @Override
+            public Void call(JmDNS publisher) {
+                // no network lookup, the registered ServiceInfo is at hand
+                ServiceInfo serviceInfo = registration != null ? registration.services.get(publisher) : null;
+                if (serviceInfo != null) {
+                    publisher.unregisterService(serviceInfo);
+                }
+                return null;
+            }
+        });
+    }
+
+    public List<ResponderResult<Void>> stop() {
+
+        stopped = true;
+        registered.clear();
+
+        List<ResultCallback> dropped = new ArrayList<ResultCallback>();
+        synchronized (pendingUpdates) {
+            for (PendingUpdate pending : pendingUpdates.values()) {
+                dropped.addAll(pending.callbacks);
+            }
+            pendingUpdates.clear();
+        }
+        for (ResultCallback callback : dropped) {
+            callback.error("Publisher stopped");
+        }
+
+        List<JmDNS> targets = new ArrayList<JmDNS>(publishers);
+        publishers.clear();
+        List<ResponderResult<Void>> results = responders.fanOut(targets, new ResponderTask<Void>() {
+            @Override
+            public Void call(JmDNS publisher) {
+                publisher.unregisterAllServices();
+                return null;
+            }
+        });
+        responderPool.release(targets);
+        return results;
+
+    }
+
+    private static class PendingUpdate {
+        private Map<String, String> txtRecord;
+        private final List<ResultCallback> callbacks = new ArrayList<ResultCallback>();
+    }
+
+}
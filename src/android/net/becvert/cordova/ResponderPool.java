@@ -0,0 +1,122 @@
+package net.becvert.cordova;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jmdns.JmDNS;
+
+/**
+ * Reference-counted JmDNS instances, one per address, shared by the
+ * RegistrationManager and the BrowserManager.
+ * An instance is created on first use and closed when its last user releases it.
+ */
+class ResponderPool {
+
+    private static final String TAG = "ZeroConf";
+
+    private final Responders executor;
+
+    private Map<InetAddress, JmDNS> responders = new HashMap<InetAddress, JmDNS>();
+
+    private Map<JmDNS, Integer> refCounts = new HashMap<JmDNS, Integer>();
+
+    public ResponderPool(Responders executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * With no address, a single instance is bound to the default one.
+     */
+    public List<InetAddress> keysFor(List<InetAddress> addresses) {
+        List<InetAddress> keys = new ArrayList<InetAddress>();
+        if (addresses == null || addresses.size() == 0) {
+            keys.add(null);
+        } else {
+            keys.addAll(addresses);
+        }
+        return keys;
+    }
+
+    public synchronized int size() {
+        return responders.size();
+    }
+
+    public synchronized InetAddress addressOf(JmDNS responder) {
+        for (Map.Entry<InetAddress, JmDNS> entry : responders.entrySet()) {
+            if (entry.getValue() == responder) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<JmDNS> acquire(List<InetAddress> keys, String hostname) throws IOException {
+
+        List<JmDNS> acquired = new ArrayList<JmDNS>();
+        try {
+            for (InetAddress addr : keys) {
+                JmDNS responder = responders.get(addr);
+                if (responder == null) {
+                    responder = JmDNS.create(addr, hostname);
+                    responders.put(addr, responder);
+                    refCounts.put(responder, 0);
+                }
+                refCounts.put(responder, refCounts.get(responder) + 1);
+                acquired.add(responder);
+            }
+        } catch (IOException e) {
+            release(acquired);
+            throw e;
+        }
+
+        ZeroConfLog.d(TAG, "Responders in use " + responders.size());
+
+        return acquired;
+    }
+
+    /**
+     * Instances no longer in use are closed concurrently, JmDNS sends goodbye packets on close.
+     */
+    public List<ResponderResult<Void>> release(List<JmDNS> acquired) {
+
+        List<JmDNS> unused = new ArrayList<JmDNS>();
+        synchronized (this) {
+            for (JmDNS responder : acquired) {
+                Integer count = refCounts.get(responder);
+                if (count == null) {
+                    continue;
+                }
+                if (count > 1) {
+                    refCounts.put(responder, count - 1);
+                    continue;
+                }
+                refCounts.remove(responder);
+                responders.values().remove(responder);
+                unused.add(responder);
+            }
+
+            ZeroConfLog.d(TAG, "Responders in use " + responders.size());
+        }
+
+        List<ResponderResult<Void>> results = executor.fanOut(unused, new ResponderTask<Void>() {
+            @Override
+            public Void call(JmDNS responder) throws IOException {
+                responder.close();
+                return null;
+            }
+        });
+
+        // instances still in use are reported as released
+        for (JmDNS responder : acquired) {
+            if (!unused.contains(responder)) {
+                results.add(new ResponderResult<Void>(responder));
+            }
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,43 @@
+package net.becvert.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+
+/**
+ * Outcome of a task on one JmDNS instance.
+ */
+class ResponderResult<T> {
+
+    final JmDNS responder;
+    T value;
+    Throwable error;
+
+    public ResponderResult(JmDNS responder) {
+        this.responder = responder;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        try {
+            obj.put("address", responder.getInetAddress().getHostAddress());
+        } catch (IOException e) {
+            obj.put("address", responder.getName());
+        }
+        obj.put("success", error == null);
+        if (error != null) {
+            obj.put("error", String.valueOf(error.getMessage()));
+        }
+        if (value instanceof ServiceInfo) {
+            obj.put("service", jsonifyService((ServiceInfo) value));
+        }
+        return obj;
+    }
+
+}
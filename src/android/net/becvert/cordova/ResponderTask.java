@@ -0,0 +1,10 @@
+package net.becvert.cordova;
+
+import javax.jmdns.JmDNS;
+
+/**
+ * A task run on one JmDNS instance, see Responders.
+ */
+interface ResponderTask<T> {
+    T call(JmDNS responder) throws Exception;
+}
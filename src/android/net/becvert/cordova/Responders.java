@@ -0,0 +1,98 @@
+package net.becvert.cordova;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.jmdns.JmDNS;
+
+/**
+ * Runs tasks on several JmDNS instances at once, on a shared bounded thread pool.
+ * A task the pool rejects, all its threads being busy, runs on the submitting thread, which waits for it anyway.
+ * Tasks are then never queued behind the tasks waiting for them.
+ */
+class Responders {
+
+    private static final String TAG = "ZeroConf";
+
+    private final ExecutorService executor;
+    private final ExecutorService networkExecutor;
+
+    public Responders(ExecutorService executor, ExecutorService networkExecutor) {
+        this.executor = executor;
+        this.networkExecutor = networkExecutor;
+    }
+
+    /**
+     * Runs a task that waits on the network, off the serial executors and the fan-out pool.
+     */
+    public void execute(Runnable task) {
+        networkExecutor.execute(task);
+    }
+
+    /**
+     * Runs the task on all the instances concurrently, and waits for all of them to complete.
+     * The time taken is then the one of the slowest instance.
+     */
+    public <T> List<ResponderResult<T>> fanOut(List<JmDNS> responders, final ResponderTask<T> task) {
+
+        List<ResponderResult<T>> results = new ArrayList<ResponderResult<T>>();
+        if (responders.size() == 1) {
+            ResponderResult<T> result = new ResponderResult<T>(responders.get(0));
+            try {
+                result.value = task.call(responders.get(0));
+            } catch (Exception e) {
+                ZeroConfLog.e(TAG, e.getMessage(), e);
+                result.error = e;
+            }
+            results.add(result);
+            return results;
+        }
+
+        return collect(responders, submit(responders, task));
+    }
+
+    public <T> List<Future<T>> submit(List<JmDNS> responders, final ResponderTask<T> task) {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (final JmDNS responder : responders) {
+            Callable<T> callable = new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return task.call(responder);
+                }
+            };
+            try {
+                futures.add(executor.submit(callable));
+            } catch (RejectedExecutionException e) {
+                FutureTask<T> future = new FutureTask<T>(callable);
+                future.run();
+                futures.add(future);
+            }
+        }
+        return futures;
+    }
+
+    public <T> List<ResponderResult<T>> collect(List<JmDNS> responders, List<Future<T>> futures) {
+        List<ResponderResult<T>> results = new ArrayList<ResponderResult<T>>();
+        for (int i = 0; i < responders.size(); i++) {
+            ResponderResult<T> result = new ResponderResult<T>(responders.get(i));
+            try {
+                result.value = futures.get(i).get();
+            } catch (ExecutionException e) {
+                ZeroConfLog.e(TAG, e.getCause().getMessage(), e.getCause());
+                result.error = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.error = e;
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+}
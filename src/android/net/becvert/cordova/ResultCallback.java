@@ -0,0 +1,26 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Where the results of an action are sent, the CallbackContext of the action in the plugin.
+ */
+interface ResultCallback {
+
+    /**
+     * Sends an intermediate result, more are expected.
+     */
+    void send(JSONObject message);
+
+    void send(JSONArray message);
+
+    void success();
+
+    void success(JSONObject message);
+
+    void success(JSONArray message);
+
+    void error(String message);
+
+}
@@ -0,0 +1,69 @@
+package net.becvert.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single thread owned by the plugin, so that slow mDNS operations do not hold the threads of the shared
+ * Cordova pool. Tasks run in submission order, hence in order for a given service type.
+ */
+class SerialExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public SerialExecutor(final String name) {
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name);
+                    }
+                });
+    }
+
+    public void execute(final Runnable task) {
+        final long submitted = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    // time spent queued and running
+                    long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted);
+                    completedTasks.incrementAndGet();
+                    totalLatency.addAndGet(latency);
+                    long max = maxLatency.get();
+                    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                        max = maxLatency.get();
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public JSONObject getStats() throws JSONException {
+        long completed = completedTasks.get();
+        JSONObject stats = new JSONObject();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("completedTasks", completed);
+        stats.put("averageLatency", completed > 0 ? totalLatency.get() / completed : 0);
+        stats.put("maxLatency", maxLatency.get());
+        return stats;
+    }
+
+}
@@ -0,0 +1,162 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * JSON forms of the services and of the results per JmDNS instance, as sent to javascript.
+ */
+final class ServiceJson {
+
+    // records are serialized once, and the JSON kept in them
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheLookups = new AtomicLong();
+
+    private ServiceJson() {
+    }
+
+    static Map<String, String> toTxtRecord(JSONObject props) throws JSONException {
+        Map<String, String> txtRecord = new HashMap<String, String>();
+        if (props != null) {
+            Iterator<String> iter = props.keys();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                txtRecord.put(key, props.getString(key));
+            }
+        }
+        return txtRecord;
+    }
+
+    static JSONArray jsonifyResults(List<? extends ResponderResult<?>> results) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (ResponderResult<?> result : results) {
+            array.put(result.toJSON());
+        }
+        return array;
+    }
+
+    static JSONObject jsonifyService(ServiceInfo service) throws JSONException {
+        return jsonifyService(new ServiceRecord(service));
+    }
+
+    static JSONObject jsonifyService(ServiceRecord service) throws JSONException {
+        cacheLookups.incrementAndGet();
+        synchronized (service) {
+            if (service.json != null) {
+                cacheHits.incrementAndGet();
+                return service.json;
+            }
+        }
+
+        JSONObject obj = new JSONObject();
+
+        obj.put("domain", service.domain);
+        obj.put("type", service.type);
+        obj.put("name", service.name);
+        obj.put("port", service.port);
+        obj.put("hostname", service.hostname);
+        obj.put("ipv4Addresses", new JSONArray(service.ipv4Addresses));
+        obj.put("ipv6Addresses", new JSONArray(service.ipv6Addresses));
+        obj.put("txtRecord", new JSONObject(service.txtRecord));
+
+        synchronized (service) {
+            service.json = obj;
+        }
+        return obj;
+
+    }
+
+    static JSONObject jsonifyServiceName(ServiceRecord service) throws JSONException {
+        JSONObject obj = new JSONObject();
+
+        obj.put("domain", service.domain);
+        obj.put("type", service.type);
+        obj.put("name", service.name);
+
+        return obj;
+    }
+
+    /**
+     * Only the fields that changed since the previous record, besides domain, type and name.
+     * Removed TXT keys are set to null.
+     */
+    static JSONObject jsonifyServiceDelta(ServiceRecord previous, ServiceRecord service) throws JSONException {
+        JSONObject obj = new JSONObject();
+
+        obj.put("domain", service.domain);
+        obj.put("type", service.type);
+        obj.put("name", service.name);
+        if (service.port != previous.port) {
+            obj.put("port", service.port);
+        }
+        if (!Objects.equals(service.hostname, previous.hostname)) {
+            obj.put("hostname", service.hostname);
+        }
+        if (!service.ipv4Addresses.equals(previous.ipv4Addresses)) {
+            obj.put("ipv4Addresses", new JSONArray(service.ipv4Addresses));
+        }
+        if (!service.ipv6Addresses.equals(previous.ipv6Addresses)) {
+            obj.put("ipv6Addresses", new JSONArray(service.ipv6Addresses));
+        }
+
+        JSONObject props = new JSONObject();
+        for (Map.Entry<String, String> entry : service.txtRecord.entrySet()) {
+            if (!Objects.equals(entry.getValue(), previous.txtRecord.get(entry.getKey()))) {
+                props.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : previous.txtRecord.keySet()) {
+            if (!service.txtRecord.containsKey(key)) {
+                props.put(key, JSONObject.NULL);
+            }
+        }
+        if (props.length() > 0) {
+            obj.put("txtRecord", props);
+        }
+
+        return obj;
+
+    }
+
+    /**
+     * The record of a service serialized by jsonifyService.
+     */
+    static ServiceRecord parseService(JSONObject obj) throws JSONException {
+        ServiceRecord service = new ServiceRecord(obj.getString("domain"), obj.getString("type"), obj.getString("name"));
+        service.port = obj.optInt("port");
+        service.hostname = obj.optString("hostname", null);
+
+        JSONArray ipv4Addresses = obj.optJSONArray("ipv4Addresses");
+        for (int i = 0; ipv4Addresses != null && i < ipv4Addresses.length(); i++) {
+            service.ipv4Addresses.add(ipv4Addresses.getString(i));
+        }
+        JSONArray ipv6Addresses = obj.optJSONArray("ipv6Addresses");
+        for (int i = 0; ipv6Addresses != null && i < ipv6Addresses.length(); i++) {
+            service.ipv6Addresses.add(ipv6Addresses.getString(i));
+        }
+        service.txtRecord.putAll(toTxtRecord(obj.optJSONObject("txtRecord")));
+
+        return service;
+    }
+
+    static JSONObject getCacheStats() throws JSONException {
+        long hits = cacheHits.get();
+        long lookups = cacheLookups.get();
+        JSONObject cache = new JSONObject();
+        cache.put("hits", hits);
+        cache.put("lookups", lookups);
+        cache.put("hitRate", lookups > 0 ? (double) hits / lookups : 0);
+        return cache;
+    }
+
+}
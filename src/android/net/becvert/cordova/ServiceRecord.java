@@ -0,0 +1,135 @@
+package net.becvert.cordova;
+
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * Service fields as sent to javascript.
+ * Addresses are merged when the same service is seen on several interfaces.
+ */
+class ServiceRecord {
+
+    final String domain;
+    final String type;
+    final String name;
+    int port;
+    String hostname;
+    final Set<String> ipv4Addresses = new LinkedHashSet<String>();
+    final Set<String> ipv6Addresses = new LinkedHashSet<String>();
+    final Map<String, String> txtRecord = new LinkedHashMap<String, String>();
+
+    // raw records of a single ServiceInfo, to tell whether it changed
+    byte[] text;
+    InetAddress[] inet4Addresses;
+    InetAddress[] inet6Addresses;
+
+    // serialized form, records are not modified once sent
+    JSONObject json;
+
+    // restored from the previous launch, not seen on the network yet
+    boolean cached;
+
+    public ServiceRecord(ServiceInfo service) {
+        domain = service.getDomain() + ".";
+        type = service.getType().replace(domain, "");
+        name = service.getName();
+        port = service.getPort();
+        hostname = service.getServer();
+        text = service.getTextBytes();
+        inet4Addresses = service.getInet4Addresses();
+        inet6Addresses = service.getInet6Addresses();
+
+        for (int i = 0; i < inet4Addresses.length; i++) {
+            if (inet4Addresses[i] != null) {
+                ipv4Addresses.add(inet4Addresses[i].getHostAddress());
+            }
+        }
+
+        for (int i = 0; i < inet6Addresses.length; i++) {
+            if (inet6Addresses[i] != null) {
+                ipv6Addresses.add(inet6Addresses[i].getHostAddress());
+            }
+        }
+
+        Enumeration<String> names = service.getPropertyNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            txtRecord.put(name, service.getPropertyString(name));
+        }
+    }
+
+    /**
+     * A record known by name only, the other fields are filled in by the caller.
+     */
+    public ServiceRecord(String domain, String type, String name) {
+        this.domain = domain;
+        this.type = type;
+        this.name = name;
+    }
+
+    public ServiceRecord(ServiceRecord other) {
+        domain = other.domain;
+        type = other.type;
+        name = other.name;
+        port = other.port;
+        hostname = other.hostname;
+        ipv4Addresses.addAll(other.ipv4Addresses);
+        ipv6Addresses.addAll(other.ipv6Addresses);
+        txtRecord.putAll(other.txtRecord);
+    }
+
+    public void merge(ServiceRecord other) {
+        if (other.port != 0 || hostname == null) {
+            port = other.port;
+            hostname = other.hostname;
+        }
+        ipv4Addresses.addAll(other.ipv4Addresses);
+        ipv6Addresses.addAll(other.ipv6Addresses);
+        txtRecord.putAll(other.txtRecord);
+    }
+
+    public boolean isSameAs(ServiceInfo service) {
+        return port == service.getPort()
+                && Objects.equals(hostname, service.getServer())
+                && Arrays.equals(text, service.getTextBytes())
+                && Arrays.equals(inet4Addresses, service.getInet4Addresses())
+                && Arrays.equals(inet6Addresses, service.getInet6Addresses());
+    }
+
+    public String getKey() {
+        return (name + "." + type + domain).toLowerCase();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServiceRecord)) {
+            return false;
+        }
+        ServiceRecord other = (ServiceRecord) o;
+        return port == other.port
+                && getKey().equals(other.getKey())
+                && Objects.equals(hostname, other.hostname)
+                && ipv4Addresses.equals(other.ipv4Addresses)
+                && ipv6Addresses.equals(other.ipv6Addresses)
+                && txtRecord.equals(other.txtRecord);
+    }
+
+    @Override
+    public int hashCode() {
+        return getKey().hashCode();
+    }
+
+}
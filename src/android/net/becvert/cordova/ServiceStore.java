@@ -0,0 +1,89 @@
+package net.becvert.cordova;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+import static net.becvert.cordova.ServiceJson.parseService;
+
+/**
+ * Resolved services saved in the app's preferences, so that watches start with the services of the previous launch.
+ */
+class ServiceStore {
+
+    private static final String TAG = "ZeroConf";
+
+    private static final String PREFERENCES_NAME = "ZeroConf";
+    private static final String KEY_SERVICES = "services";
+
+    private final SharedPreferences preferences;
+
+    public ServiceStore(Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * The services saved within their TTL, as cached records.
+     * Services seen in the future, after a clock change, are dropped too.
+     */
+    public List<StoredService> load() {
+        List<StoredService> entries = new ArrayList<StoredService>();
+        String saved = preferences.getString(KEY_SERVICES, null);
+        if (saved == null) {
+            return entries;
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            JSONArray array = new JSONArray(saved);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject obj = array.getJSONObject(i);
+                long seenAt = obj.getLong("seenAt");
+                long ttl = obj.getLong("ttl");
+                if (seenAt > now || now - seenAt > ttl) {
+                    continue;
+                }
+                ServiceRecord record = parseService(obj.getJSONObject("service"));
+                record.cached = true;
+                entries.add(new StoredService(obj.getString("watch"), record, seenAt, ttl));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+
+        Log.d(TAG, "Services loaded " + entries.size());
+
+        return entries;
+    }
+
+    public void save(List<StoredService> entries) {
+        JSONArray array = new JSONArray();
+        try {
+            for (StoredService entry : entries) {
+                JSONObject obj = new JSONObject();
+                obj.put("watch", entry.key);
+                obj.put("seenAt", entry.seenAt);
+                obj.put("ttl", entry.ttl);
+                obj.put("service", jsonifyService(entry.record));
+                array.put(obj);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return;
+        }
+
+        // written in background
+        preferences.edit().putString(KEY_SERVICES, array.toString()).apply();
+
+        Log.d(TAG, "Services saved " + entries.size());
+    }
+
+}
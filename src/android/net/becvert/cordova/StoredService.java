@@ -0,0 +1,20 @@
+package net.becvert.cordova;
+
+/**
+ * A service last seen at seenAt, wall clock time, by the watch of a type + domain.
+ */
+class StoredService {
+
+    final String key;
+    final ServiceRecord record;
+    final long seenAt;
+    final long ttl;
+
+    public StoredService(String key, ServiceRecord record, long seenAt, long ttl) {
+        this.key = key;
+        this.record = record;
+        this.seenAt = seenAt;
+        this.ttl = ttl;
+    }
+
+}
@@ -0,0 +1,240 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static net.becvert.cordova.ServiceJson.jsonifyService;
+import static net.becvert.cordova.ServiceJson.jsonifyServiceName;
+import static net.becvert.cordova.ServiceJson.jsonifyServiceDelta;
+
+/**
+ * Delivers the events of a watch to its callback, one by one or, when a batch interval is set,
+ * as a JSON array of events at most every batchInterval ms or every batchSize events.
+ * Within a batch, the events of a same service instance are collapsed into the latest one,
+ * a service added and removed within the batch is not delivered at all.
+ * In delta mode, a service already delivered only carries the fields that changed since.
+ * In lazy mode, services are delivered by name only, and never as resolved.
+ * Services restored from the previous launch are delivered as resolved and cached.
+ * With a filter, only the services matching it are delivered, and a service that stops matching is delivered as removed.
+ */
+class WatchCallback {
+
+    private static final String TAG = "ZeroConf";
+
+    private final ResultCallback callback;
+    private final ScheduledExecutorService scheduler;
+    private final Metrics metrics;
+    private final int batchInterval;
+    private final int batchSize;
+    private final boolean delta;
+    final boolean lazy;
+    private final WatchFilter filter;
+
+    // services delivered as matching the filter, guarded by this
+    private final Set<String> matched = new HashSet<String>();
+
+    // last record delivered per service, in delta mode
+    private final Map<String, ServiceRecord> delivered = new HashMap<String, ServiceRecord>();
+
+    private final Map<String, String> pendingActions = new LinkedHashMap<String, String>();
+    private final Map<String, ServiceRecord> pendingServices = new HashMap<String, ServiceRecord>();
+    // services first seen within the pending batch
+    private final Set<String> pendingAdded = new HashSet<String>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean cancelled;
+
+    public WatchCallback(ResultCallback callback, ScheduledExecutorService scheduler, Metrics metrics, int batchInterval, int batchSize, boolean delta, boolean lazy, WatchFilter filter) {
+        this.callback = callback;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.batchInterval = batchInterval;
+        this.batchSize = batchSize;
+        this.delta = delta;
+        this.lazy = lazy;
+        this.filter = filter;
+    }
+
+    /**
+     * Whether the service is to be delivered, by filter only: it may not be delivered yet.
+     */
+    public boolean accepts(ServiceRecord service) {
+        return filter == null || filter.matches(service);
+    }
+
+    public void send(String action, ServiceRecord service) {
+        if (filter != null) {
+            action = filter(action, service);
+            if (action == null) {
+                return;
+            }
+        }
+
+        if (batchInterval <= 0) {
+            sendResult(action, service);
+            return;
+        }
+
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+
+            String key = service.getKey();
+            String pendingAction = pendingActions.get(key);
+            if ("added".equals(action) && pendingAction != null && !"removed".equals(pendingAction)) {
+                // already pending as added or resolved
+                return;
+            }
+            if ("removed".equals(action) && pendingAdded.remove(key)) {
+                // added and removed within the batch, never delivered
+                pendingActions.remove(key);
+                pendingServices.remove(key);
+                return;
+            }
+            if ("added".equals(action) && pendingAction == null) {
+                pendingAdded.add(key);
+            }
+            pendingActions.remove(key);
+            pendingActions.put(key, action);
+            pendingServices.put(key, service);
+
+            if (batchSize > 0 && pendingActions.size() >= batchSize) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                flush();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (WatchCallback.this) {
+                            scheduledFlush = null;
+                            flush();
+                        }
+                    }
+                }, batchInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Returns the action to deliver, or null to drop the event.
+     * Added services often lack their TXT record and addresses yet, they are then delivered once resolved.
+     */
+    private synchronized String filter(String action, ServiceRecord service) {
+        String key = service.getKey();
+        if ("removed".equals(action)) {
+            return matched.remove(key) ? action : null;
+        }
+
+        // lazy watches never get the TXT record nor the addresses
+        boolean matches = lazy ? filter.matchesName(service.name) : filter.matches(service);
+        if (matches) {
+            matched.add(key);
+            return action;
+        }
+        if ("resolved".equals(action) && matched.remove(key)) {
+            // no longer matching
+            return "removed";
+        }
+        return null;
+    }
+
+    public synchronized void cancel() {
+        cancelled = true;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        pendingActions.clear();
+        pendingServices.clear();
+        pendingAdded.clear();
+        delivered.clear();
+        matched.clear();
+    }
+
+    private void flush() {
+        if (cancelled || pendingActions.isEmpty()) {
+            return;
+        }
+
+        JSONArray events = new JSONArray();
+        try {
+            for (Map.Entry<String, String> entry : pendingActions.entrySet()) {
+                ServiceRecord service = pendingServices.get(entry.getKey());
+                events.put(jsonifyEvent(entry.getValue(), service));
+                metrics.eventDelivered(service.type + service.domain);
+            }
+
+            if (ZeroConfLog.isDebugEnabled()) {
+                ZeroConfLog.d(TAG, "Sending " + events.length() + " results");
+            }
+
+            callback.send(events);
+
+        } catch (JSONException e) {
+            ZeroConfLog.e(TAG, e.getMessage(), e);
+            callback.error("Error: " + e.getMessage());
+        } finally {
+            pendingActions.clear();
+            pendingServices.clear();
+            pendingAdded.clear();
+        }
+    }
+
+    private synchronized void sendResult(String action, ServiceRecord service) {
+        if (cancelled) {
+            return;
+        }
+
+        try {
+            JSONObject status = jsonifyEvent(action, service);
+            metrics.eventDelivered(service.type + service.domain);
+
+            callback.send(status);
+
+        } catch (JSONException e) {
+            ZeroConfLog.e(TAG, e.getMessage(), e);
+            callback.error("Error: " + e.getMessage());
+        }
+    }
+
+    private JSONObject jsonifyEvent(String action, ServiceRecord service) throws JSONException {
+        JSONObject status = new JSONObject();
+        status.put("action", action);
+        if (service.cached && !"removed".equals(action)) {
+            status.put("cached", true);
+        }
+
+        if (lazy) {
+            status.put("service", jsonifyServiceName(service));
+            return status;
+        }
+
+        ServiceRecord previous = null;
+        if (delta) {
+            if ("removed".equals(action)) {
+                previous = delivered.remove(service.getKey());
+            } else {
+                previous = delivered.put(service.getKey(), service);
+            }
+        }
+        if (previous != null) {
+            status.put("service", jsonifyServiceDelta(previous, service));
+        } else {
+            status.put("service", jsonifyService(service));
+        }
+        return status;
+    }
+}
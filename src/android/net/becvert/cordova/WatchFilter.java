@@ -0,0 +1,123 @@
+package net.becvert.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Which services a watch delivers, checked before any JSON is built:
+ * an instance name glob (* and ?), TXT values equal to the given ones or starting with them when they end with *,
+ * and an address family the service must have an address of.
+ */
+class WatchFilter {
+
+    private final Pattern name;
+    private final Map<String, String> txtRecord = new LinkedHashMap<String, String>();
+    private final String addressFamily;
+
+    private WatchFilter(Pattern name, String addressFamily) {
+        this.name = name;
+        this.addressFamily = addressFamily;
+    }
+
+    /**
+     * { "name" : "Printer*", "txtRecord" : { "vendor" : "acme", "model" : "X1*" }, "addressFamily" : "ipv4" }
+     * Returns null when there is nothing to filter.
+     */
+    public static WatchFilter fromJSON(JSONObject spec) throws JSONException {
+        if (spec == null) {
+            return null;
+        }
+
+        String glob = spec.optString("name");
+        String addressFamily = spec.optString("addressFamily");
+        WatchFilter filter = new WatchFilter(glob.isEmpty() ? null : compileGlob(glob),
+                "ipv4".equalsIgnoreCase(addressFamily) || "ipv6".equalsIgnoreCase(addressFamily) ? addressFamily.toLowerCase() : null);
+
+        JSONObject txtRecord = spec.optJSONObject("txtRecord");
+        if (txtRecord != null) {
+            Iterator<String> iter = txtRecord.keys();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                filter.txtRecord.put(key, txtRecord.getString(key));
+            }
+        }
+
+        if (filter.name == null && filter.txtRecord.isEmpty() && filter.addressFamily == null) {
+            return null;
+        }
+        return filter;
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        // instance names are case insensitive
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    public boolean matchesName(String instanceName) {
+        return name == null || name.matcher(instanceName).matches();
+    }
+
+    public boolean matches(ServiceRecord service) {
+        if (!matchesName(service.name)) {
+            return false;
+        }
+
+        if ("ipv4".equals(addressFamily) && service.ipv4Addresses.isEmpty()) {
+            return false;
+        }
+        if ("ipv6".equals(addressFamily) && service.ipv6Addresses.isEmpty()) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> entry : txtRecord.entrySet()) {
+            String value = getTxtValue(service, entry.getKey());
+            if (value == null) {
+                return false;
+            }
+            String expected = entry.getValue();
+            if (expected.endsWith("*")) {
+                if (!value.startsWith(expected.substring(0, expected.length() - 1))) {
+                    return false;
+                }
+            } else if (!value.equals(expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // TXT keys are case insensitive
+    private static String getTxtValue(ServiceRecord service, String key) {
+        String value = service.txtRecord.get(key);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> entry : service.txtRecord.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+}
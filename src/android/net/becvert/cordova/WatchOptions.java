@@ -0,0 +1,26 @@
+package net.becvert.cordova;
+
+/**
+ * How a watch browses and delivers its events.
+ */
+class WatchOptions {
+
+    final String addressFamily;
+    final String responderMode;
+    final int batchInterval;
+    final int batchSize;
+    final boolean delta;
+    final boolean lazy;
+    final WatchFilter filter;
+
+    public WatchOptions(String addressFamily, String responderMode, int batchInterval, int batchSize, boolean delta, boolean lazy, WatchFilter filter) {
+        this.addressFamily = addressFamily;
+        this.responderMode = responderMode;
+        this.batchInterval = batchInterval;
+        this.batchSize = batchSize;
+        this.delta = delta;
+        this.lazy = lazy;
+        this.filter = filter;
+    }
+
+}
@@ -1,8 +1,13 @@
 package net.becvert.cordova;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
@@ -17,7 +22,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.Inet4Address;
@@ -26,73 +30,197 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceEvent;
-import javax.jmdns.ServiceInfo;
-import javax.jmdns.ServiceListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static android.content.Context.WIFI_SERVICE;
 
-public class ZeroConf extends CordovaPlugin {
+public class ZeroConf extends CordovaPlugin implements ZeroConfHost {
 
     private static final String TAG = "ZeroConf";
 
     WifiManager.MulticastLock lock;
+    private int lockUsers;
+    private long lockAcquiredAt;
+    private long lockHeldTime;
+    private boolean suspendOnPause;
+
+    private final Metrics metrics = new Metrics();
+
+    private static final ZeroConfLog.Logger LOGCAT = new ZeroConfLog.Logger() {
+        @Override
+        public boolean isDebugEnabled() {
+            return Log.isLoggable(TAG, Log.DEBUG);
+        }
+
+        @Override
+        public void d(String tag, String message) {
+            Log.d(tag, message);
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable e) {
+            Log.e(tag, message, e);
+        }
+    };
 
-    private RegistrationManager registrationManager;
-    private BrowserManager browserManager;
-    private List<InetAddress> addresses;
-    private List<InetAddress> ipv6Addresses;
-    private List<InetAddress> ipv4Addresses;
+    private ScheduledExecutorService scheduler;
+    // once all its threads are busy, the tasks run on the threads that submit them
+    private final ExecutorService fanOutExecutor = new ThreadPoolExecutor(0, FAN_OUT_THREADS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ZeroConf-FanOut");
+        }
+    });
+    private final ExecutorService networkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ZeroConf-Network");
+        }
+    });
+    private final Responders responders = new Responders(fanOutExecutor, networkExecutor);
+    private final ResponderPool responderPool = new ResponderPool(responders);
+    private ZeroConfBackend backend;
+
+    // saves the resolved services for the next launch, with the ZeroConfServiceCache preference
+    private ServiceStore serviceStore;
+
+    private volatile List<InetAddress> addresses;
+    private volatile List<InetAddress> ipv6Addresses;
+    private volatile List<InetAddress> ipv4Addresses;
+    private volatile List<InetAddress> interfaceAddresses;
     private String hostname;
+    private BroadcastReceiver networkReceiver;
+    private ScheduledFuture<?> pendingNetworkChange;
 
     public static final String ACTION_GET_HOSTNAME = "getHostname";
     // publisher
     public static final String ACTION_REGISTER = "register";
     public static final String ACTION_UNREGISTER = "unregister";
+    public static final String ACTION_REGISTER_ALL = "registerAll";
+    public static final String ACTION_UNREGISTER_ALL = "unregisterAll";
+    public static final String ACTION_UPDATE = "update";
     public static final String ACTION_STOP = "stop";
     // browser
     public static final String ACTION_WATCH = "watch";
     public static final String ACTION_UNWATCH = "unwatch";
     public static final String ACTION_CLOSE = "close";
+    public static final String ACTION_LIST = "list";
+    public static final String ACTION_DISCOVER = "discover";
+    public static final String ACTION_RESOLVE = "resolve";
+    public static final String ACTION_BROWSE_TYPES = "browseTypes";
+    public static final String ACTION_WATCH_TYPES = "watchTypes";
+    public static final String ACTION_UNWATCH_TYPES = "unwatchTypes";
     // Re-initialize
     public static final String ACTION_REINIT = "reInit";
+    // Statistics
+    public static final String ACTION_GET_STATS = "getStats";
+
+    // threads running tasks on the JmDNS instances, registering 30 services on 4 addresses does not start 120 threads
+    private static final int FAN_OUT_THREADS = 8;
+
+    // connectivity changes come in bursts while roaming
+    private static final long NETWORK_CHANGE_DELAY = 1000;
+
+    // one JmDNS instance per address (default) or per interface and address family
+    public static final String RESPONDER_MODE_INTERFACE = "interface";
+
+    // the platform's mDNS daemon instead of JmDNS, set by the ZeroConfBackend preference
+    public static final String BACKEND_NSD = "nsd";
 
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
 
+        ZeroConfLog.setLogger(LOGCAT);
+
         Context context = this.cordova.getActivity().getApplicationContext();
         WifiManager wifi = (WifiManager) context.getSystemService(WIFI_SERVICE);
         lock = wifi.createMulticastLock("ZeroConfPluginLock");
         lock.setReferenceCounted(false);
 
+        suspendOnPause = preferences.getBoolean("ZeroConfSuspendOnPause", false);
+
+        if (BACKEND_NSD.equalsIgnoreCase(preferences.getString("ZeroConfBackend", "jmdns"))) {
+            backend = new NsdBackend(context, this);
+        } else {
+            backend = new JmDNSBackend(this);
+        }
+
+        if (preferences.getBoolean("ZeroConfServiceCache", false)) {
+            serviceStore = new ServiceStore(context);
+            backend.restoreServices(serviceStore.load());
+        }
+
+        scanAddresses();
+
+        try {
+            hostname = getHostName(cordova);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+
+        Log.d(TAG, "Hostname " + hostname);
+
+        networkReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!isInitialStickyBroadcast()) {
+                    onNetworkChange();
+                }
+            }
+        };
+        context.registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        Log.v(TAG, "Initialized");
+    }
+
+    private void scanAddresses() {
+        List<InetAddress> addresses = new CopyOnWriteArrayList<InetAddress>();
+        List<InetAddress> ipv6Addresses = new CopyOnWriteArrayList<InetAddress>();
+        List<InetAddress> ipv4Addresses = new CopyOnWriteArrayList<InetAddress>();
+        List<InetAddress> interfaceAddresses = new CopyOnWriteArrayList<InetAddress>();
+
         try {
-            addresses = new CopyOnWriteArrayList<InetAddress>();
-            ipv6Addresses = new CopyOnWriteArrayList<InetAddress>();
-            ipv4Addresses = new CopyOnWriteArrayList<InetAddress>();
             List<NetworkInterface> intfs = Collections.list(NetworkInterface.getNetworkInterfaces());
             for (NetworkInterface intf : intfs) {
                 if (intf.supportsMulticast()) {
+                    InetAddress intfIpv4 = null;
+                    InetAddress intfIpv6 = null;
                     List<InetAddress> addrs = Collections.list(intf.getInetAddresses());
                     for (InetAddress addr : addrs) {
                         if (!addr.isLoopbackAddress()) {
                             if (addr instanceof Inet6Address) {
                                 addresses.add(addr);
                                 ipv6Addresses.add(addr);
+                                // mDNS over IPv6 is link-scoped, the link-local address is the stable one
+                                if (intfIpv6 == null || (addr.isLinkLocalAddress() && !intfIpv6.isLinkLocalAddress())) {
+                                    intfIpv6 = addr;
+                                }
                             } else if (addr instanceof Inet4Address) {
                                 addresses.add(addr);
                                 ipv4Addresses.add(addr);
+                                if (intfIpv4 == null) {
+                                    intfIpv4 = addr;
+                                }
                             }
                         }
                     }
+                    if (intfIpv4 != null) {
+                        interfaceAddresses.add(intfIpv4);
+                    }
+                    if (intfIpv6 != null) {
+                        interfaceAddresses.add(intfIpv6);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -100,43 +228,80 @@ public class ZeroConf extends CordovaPlugin {
         }
 
         Log.d(TAG, "Addresses " + addresses);
+        Log.d(TAG, "Interface addresses " + interfaceAddresses);
 
-        try {
-            hostname = getHostName(cordova);
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage(), e);
+        this.addresses = addresses;
+        this.ipv6Addresses = ipv6Addresses;
+        this.ipv4Addresses = ipv4Addresses;
+        this.interfaceAddresses = interfaceAddresses;
+    }
+
+    /**
+     * Re-scans the network interfaces and starts or stops JmDNS instances for the addresses that changed only.
+     * Registrations and watches are kept.
+     */
+    private void onNetworkChange() {
+        synchronized (this) {
+            if (pendingNetworkChange != null) {
+                pendingNetworkChange.cancel(false);
+            }
+            pendingNetworkChange = getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshAddresses(null);
+                }
+            }, NETWORK_CHANGE_DELAY, TimeUnit.MILLISECONDS);
         }
+    }
 
-        Log.d(TAG, "Hostname " + hostname);
+    private void refreshAddresses(CallbackContext callbackContext) {
+        scanAddresses();
 
-        Log.v(TAG, "Initialized");
+        backend.updateAddresses(callbackContext != null ? new CordovaResultCallback(callbackContext) : null);
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        if (serviceStore != null) {
+            serviceStore.save(backend.getServices());
+        }
+        if (suspendOnPause) {
+            backend.suspend();
+        }
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        if (suspendOnPause) {
+            backend.resume();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (registrationManager != null) {
-            try {
-                registrationManager.stop();
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-            } finally {
-                registrationManager = null;
-            }
+        if (networkReceiver != null) {
+            cordova.getActivity().getApplicationContext().unregisterReceiver(networkReceiver);
+            networkReceiver = null;
         }
-        if (browserManager != null) {
-            try {
-                browserManager.close();
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-            } finally {
-                browserManager = null;
+        if (serviceStore != null) {
+            serviceStore.save(backend.getServices());
+        }
+        backend.destroy();
+        synchronized (this) {
+            if (lock != null) {
+                lock.release();
+                lock = null;
             }
         }
-        if (lock != null) {
-            lock.release();
-            lock = null;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
         }
+        fanOutExecutor.shutdown();
+        networkExecutor.shutdown();
 
         Log.v(TAG, "Destroyed");
     }
@@ -159,137 +324,87 @@ public class ZeroConf extends CordovaPlugin {
 
         } else if (ACTION_REGISTER.equals(action)) {
 
-            final String type = args.optString(0);
-            final String domain = args.optString(1);
-            final String name = args.optString(2);
-            final int port = args.optInt(3);
-            final JSONObject props = args.optJSONObject(4);
-            final String addressFamily = args.optString(5);
+            String type = args.optString(0);
+            String domain = args.optString(1);
+            String name = args.optString(2);
+            int port = args.optInt(3);
+            JSONObject props = args.optJSONObject(4);
+            String addressFamily = args.optString(5);
+            String responderMode = args.optString(6);
 
             Log.d(TAG, "Register " + type + domain);
 
-            cordova.getThreadPool().execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (registrationManager == null) {
-                            List<InetAddress> selectedAddresses = addresses;
-                            if ("ipv6".equalsIgnoreCase(addressFamily)) {
-                                selectedAddresses = ipv6Addresses;
-                            } else if ("ipv4".equalsIgnoreCase(addressFamily)) {
-                                selectedAddresses = ipv4Addresses;
-                            }
-                            registrationManager = new RegistrationManager(selectedAddresses, hostname);
-                        }
+            backend.register(type, domain, name, port, props, addressFamily, responderMode, new CordovaResultCallback(callbackContext));
 
-                        ServiceInfo service = registrationManager.register(type, domain, name, port, props);
-                        if (service == null) {
-                            callbackContext.error("Failed to register");
-                            return;
-                        }
+        } else if (ACTION_UNREGISTER.equals(action)) {
 
-                        JSONObject status = new JSONObject();
-                        status.put("action", "registered");
-                        status.put("service", jsonifyService(service));
+            String type = args.optString(0);
+            String domain = args.optString(1);
+            String name = args.optString(2);
 
-                        Log.d(TAG, "Sending result: " + status.toString());
+            Log.d(TAG, "Unregister " + type + domain);
 
-                        PluginResult result = new PluginResult(PluginResult.Status.OK, status);
-                        callbackContext.sendPluginResult(result);
+            backend.unregister(type, domain, name, new CordovaResultCallback(callbackContext));
 
-                    } catch (JSONException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        callbackContext.error("Error: " + e.getMessage());
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        callbackContext.error("Error: " + e.getMessage());
-                    } catch (RuntimeException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        callbackContext.error("Error: " + e.getMessage());
-                    }
-                }
-            });
+        } else if (ACTION_UPDATE.equals(action)) {
 
-        } else if (ACTION_UNREGISTER.equals(action)) {
+            String type = args.optString(0);
+            String domain = args.optString(1);
+            String name = args.optString(2);
+            JSONObject props = args.optJSONObject(3);
+            int coalesceInterval = args.optInt(4);
 
-            final String type = args.optString(0);
-            final String domain = args.optString(1);
-            final String name = args.optString(2);
+            Log.d(TAG, "Update " + type + domain);
 
-            Log.d(TAG, "Unregister " + type + domain);
+            backend.update(type, domain, name, props, coalesceInterval, new CordovaResultCallback(callbackContext));
 
-            if (registrationManager != null) {
-                final RegistrationManager rm = registrationManager;
-                cordova.getThreadPool().execute(new Runnable() {
+        } else if (ACTION_REGISTER_ALL.equals(action)) {
 
-                    @Override
-                    public void run() {
-                        rm.unregister(type, domain, name);
-                        callbackContext.success();
-                    }
-                });
-            } else {
-                callbackContext.success();
-            }
+            JSONArray services = args.optJSONArray(0);
+            String addressFamily = args.optString(1);
+            String responderMode = args.optString(2);
 
-        } else if (ACTION_STOP.equals(action)) {
+            Log.d(TAG, "Register all " + (services != null ? services.length() : 0));
 
-            Log.d(TAG, "Stop");
+            backend.registerAll(services, addressFamily, responderMode, new CordovaResultCallback(callbackContext));
 
-            if (registrationManager != null) {
-                final RegistrationManager rm = registrationManager;
-                registrationManager = null;
-                cordova.getThreadPool().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            rm.stop();
-                            callbackContext.success();
-
-                        } catch (IOException e) {
-                            Log.e(TAG, e.getMessage(), e);
-                            callbackContext.error("Error: " + e.getMessage());
-                        }
-                    }
-                });
-            } else {
-                callbackContext.success();
-            }
+        } else if (ACTION_UNREGISTER_ALL.equals(action)) {
 
-        } else if (ACTION_WATCH.equals(action)) {
+            JSONArray services = args.optJSONArray(0);
 
-            final String type = args.optString(0);
-            final String domain = args.optString(1);
-            final String addressFamily = args.optString(2);
+            Log.d(TAG, "Unregister all " + (services != null ? services.length() : 0));
 
-            Log.d(TAG, "Watch " + type + domain);
+            backend.unregisterAll(services, new CordovaResultCallback(callbackContext));
 
-            cordova.getThreadPool().execute(new Runnable() {
+        } else if (ACTION_STOP.equals(action)) {
 
-                @Override
-                public void run() {
-                    try {
-                        if (browserManager == null) {
-                            List<InetAddress> selectedAddresses = addresses;
-                            if ("ipv6".equalsIgnoreCase(addressFamily)) {
-                                selectedAddresses = ipv6Addresses;
-                            } else if ("ipv4".equalsIgnoreCase(addressFamily)) {
-                                selectedAddresses = ipv4Addresses;
-                            }
-                            browserManager = new BrowserManager(selectedAddresses, hostname);
-                        }
+            Log.d(TAG, "Stop");
 
-                        browserManager.watch(type, domain, callbackContext);
+            backend.stop(new CordovaResultCallback(callbackContext));
 
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        callbackContext.error("Error: " + e.getMessage());
-                    } catch (RuntimeException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        callbackContext.error("Error: " + e.getMessage());
-                    }
-                }
-            });
+        } else if (ACTION_WATCH.equals(action)) {
+
+            List<String> types = optTypes(args, 0);
+            String domain = args.optString(1);
+            String addressFamily = args.optString(2);
+            String responderMode = args.optString(3);
+            int batchInterval = args.optInt(4);
+            int batchSize = args.optInt(5);
+            boolean delta = "delta".equalsIgnoreCase(args.optString(6));
+            boolean lazy = !args.optBoolean(7, true);
+            WatchFilter filter;
+            try {
+                filter = WatchFilter.fromJSON(args.optJSONObject(8));
+            } catch (JSONException e) {
+                Log.e(TAG, e.getMessage(), e);
+                callbackContext.error("Error: " + e.getMessage());
+                return true;
+            }
+
+            Log.d(TAG, "Watch " + types + " " + domain);
+
+            WatchOptions options = new WatchOptions(addressFamily, responderMode, batchInterval, batchSize, delta, lazy, filter);
+            backend.watch(types, domain, options, new CordovaResultCallback(callbackContext));
 
             PluginResult result = new PluginResult(Status.NO_RESULT);
             result.setKeepCallback(true);
@@ -297,268 +412,272 @@ public class ZeroConf extends CordovaPlugin {
 
         } else if (ACTION_UNWATCH.equals(action)) {
 
-            final String type = args.optString(0);
-            final String domain = args.optString(1);
+            List<String> types = optTypes(args, 0);
+            String domain = args.optString(1);
 
-            Log.d(TAG, "Unwatch " + type + domain);
+            Log.d(TAG, "Unwatch " + types + " " + domain);
 
-            if (browserManager != null) {
-                final BrowserManager bm = browserManager;
-                cordova.getThreadPool().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        bm.unwatch(type, domain);
-                        callbackContext.success();
-                    }
-                });
-            } else {
-                callbackContext.success();
-            }
+            backend.unwatch(types, domain, new CordovaResultCallback(callbackContext));
 
         } else if (ACTION_CLOSE.equals(action)) {
 
             Log.d(TAG, "Close");
 
-            if (browserManager != null) {
-                final BrowserManager bm = browserManager;
-                browserManager = null;
-                cordova.getThreadPool().execute(new Runnable() {
+            backend.close(new CordovaResultCallback(callbackContext));
 
-                    @Override
-                    public void run() {
-                        try {
-                            bm.close();
-                            callbackContext.success();
+        } else if (ACTION_LIST.equals(action)) {
 
-                        } catch (IOException e) {
-                            Log.e(TAG, e.getMessage(), e);
-                            callbackContext.error("Error: " + e.getMessage());
-                        }
-                    }
-                });
-            } else {
-                callbackContext.success();
-            }
+            String type = args.isNull(0) ? "" : args.optString(0);
+            String domain = args.isNull(1) ? "" : args.optString(1);
 
-        } else if (ACTION_REINIT.equals(action)) {
-            Log.e(TAG, "Re-Initializing");
+            Log.d(TAG, "List " + type + domain);
 
-            cordova.getThreadPool().execute(new Runnable() {
-                @Override
-                public void run() {
-                    onDestroy();
-                    initialize(cordova, webView);
-                    callbackContext.success();
+            backend.list(type, domain, new CordovaResultCallback(callbackContext));
 
-                    Log.e(TAG, "Re-Initialization complete");
-                }
-            });
+        } else if (ACTION_DISCOVER.equals(action)) {
 
-        } else {
-            Log.e(TAG, "Invalid action: " + action);
-            callbackContext.error("Invalid action: " + action);
-            return false;
-        }
+            String type = args.optString(0);
+            String domain = args.optString(1);
+            int timeout = args.optInt(2);
+            int maxResults = args.optInt(3);
+            boolean resolve = args.optBoolean(4, true);
+            String addressFamily = args.optString(5);
+            String responderMode = args.optString(6);
 
-        return true;
-    }
+            Log.d(TAG, "Discover " + type + domain);
 
-    private class RegistrationManager {
+            backend.discover(type, domain, timeout, maxResults, resolve, addressFamily, responderMode, new CordovaResultCallback(callbackContext));
 
-        private List<JmDNS> publishers = new ArrayList<JmDNS>();
+        } else if (ACTION_RESOLVE.equals(action)) {
 
-        public RegistrationManager(List<InetAddress> addresses, String hostname) throws IOException {
+            String type = args.optString(0);
+            String domain = args.optString(1);
+            String name = args.optString(2);
+            int timeout = args.optInt(3);
+            String addressFamily = args.optString(4);
+            String responderMode = args.optString(5);
 
-            if (addresses == null || addresses.size() == 0) {
-                publishers.add(JmDNS.create(null, hostname));
-            } else {
-                for (InetAddress addr : addresses) {
-                    publishers.add(JmDNS.create(addr, hostname));
-                }
-            }
+            Log.d(TAG, "Resolve " + name + "." + type + domain);
 
-        }
+            backend.resolve(type, domain, name, timeout, addressFamily, responderMode, new CordovaResultCallback(callbackContext));
 
-        public ServiceInfo register(String type, String domain, String name, int port, JSONObject props) throws JSONException, IOException {
+        } else if (ACTION_BROWSE_TYPES.equals(action)) {
 
-            HashMap<String, String> txtRecord = new HashMap<String, String>();
-            if (props != null) {
-                Iterator<String> iter = props.keys();
-                while (iter.hasNext()) {
-                    String key = iter.next();
-                    txtRecord.put(key, props.getString(key));
-                }
-            }
+            String domain = args.optString(0);
+            int timeout = args.optInt(1);
+            String addressFamily = args.optString(2);
+            String responderMode = args.optString(3);
 
-            ServiceInfo aService = null;
-            for (JmDNS publisher : publishers) {
-                ServiceInfo service = ServiceInfo.create(type + domain, name, port, 0, 0, txtRecord);
-                try {
-                    publisher.registerService(service);
-                    aService = service;
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage(), e);
-                }
-            }
-            // returns only one of the ServiceInfo instances!
-            return aService;
-        }
+            Log.d(TAG, "Browse types " + domain);
 
-        public void unregister(String type, String domain, String name) {
+            backend.browseTypes(domain, timeout, addressFamily, responderMode, new CordovaResultCallback(callbackContext));
 
-            for (JmDNS publisher : publishers) {
-                ServiceInfo serviceInfo = publisher.getServiceInfo(type + domain, name, 5000);
-                if (serviceInfo != null) {
-                    publisher.unregisterService(serviceInfo);
-                }
-            }
+        } else if (ACTION_WATCH_TYPES.equals(action)) {
 
-        }
+            String domain = args.optString(0);
+            String addressFamily = args.optString(1);
+            String responderMode = args.optString(2);
 
-        public void stop() throws IOException {
+            Log.d(TAG, "Watch types " + domain);
 
-            for (JmDNS publisher : publishers) {
-                publisher.close();
-            }
+            backend.watchTypes(domain, addressFamily, responderMode, new CordovaResultCallback(callbackContext));
 
-        }
+            PluginResult result = new PluginResult(Status.NO_RESULT);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
 
-    }
+        } else if (ACTION_UNWATCH_TYPES.equals(action)) {
 
-    private class BrowserManager implements ServiceListener {
+            String domain = args.optString(0);
 
-        private List<JmDNS> browsers = new ArrayList<JmDNS>();
+            Log.d(TAG, "Unwatch types " + domain);
 
-        private Map<String, CallbackContext> callbacks = new HashMap<String, CallbackContext>();
+            backend.unwatchTypes(domain, new CordovaResultCallback(callbackContext));
 
-        public BrowserManager(List<InetAddress> addresses, String hostname) throws IOException {
+        } else if (ACTION_REINIT.equals(action)) {
+            Log.d(TAG, "Re-Initializing");
 
-            lock.acquire();
+            refreshAddresses(callbackContext);
 
-            if (addresses == null || addresses.size() == 0) {
-                browsers.add(JmDNS.create(null, hostname));
-            } else {
-                for (InetAddress addr : addresses) {
-                    browsers.add(JmDNS.create(addr, hostname));
-                }
+        } else if (ACTION_GET_STATS.equals(action)) {
+
+            try {
+                JSONObject stats = new JSONObject();
+                backend.getStats(stats);
+                JSONObject lockStats = new JSONObject();
+                lockStats.put("held", isLockHeld());
+                lockStats.put("heldTime", getLockHeldTime());
+                stats.put("multicastLock", lockStats);
+                metrics.toJSON(stats);
+                stats.put("serviceJsonCache", ServiceJson.getCacheStats());
+                callbackContext.success(stats);
+            } catch (JSONException e) {
+                Log.e(TAG, e.getMessage(), e);
+                callbackContext.error("Error: " + e.getMessage());
             }
-        }
 
-        private void watch(String type, String domain, CallbackContext callbackContext) {
+        } else {
+            Log.e(TAG, "Invalid action: " + action);
+            callbackContext.error("Invalid action: " + action);
+            return false;
+        }
 
-            callbacks.put(type + domain, callbackContext);
+        return true;
+    }
 
-            for (JmDNS browser : browsers) {
-                browser.addServiceListener(type + domain, this);
+    /**
+     * A type, or an array of types watched with the same callback.
+     */
+    private static List<String> optTypes(JSONArray args, int index) {
+        List<String> types = new ArrayList<String>();
+        JSONArray array = args.optJSONArray(index);
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                types.add(array.optString(i));
             }
+        } else {
+            types.add(args.optString(index));
+        }
+        return types;
+    }
 
+    /**
+     * The multicast lock keeps the Wi-Fi radio receiving multicast packets, which costs battery.
+     * It is held while at least one user needs it.
+     */
+    @Override
+    public synchronized void acquireLock() {
+        if (lockUsers++ == 0 && lock != null) {
+            lock.acquire();
+            lockAcquiredAt = SystemClock.elapsedRealtime();
         }
+    }
 
-        private void unwatch(String type, String domain) {
+    @Override
+    public synchronized void releaseLock() {
+        if (lockUsers == 0) {
+            return;
+        }
+        if (--lockUsers == 0 && lock != null) {
+            lock.release();
+            lockHeldTime += SystemClock.elapsedRealtime() - lockAcquiredAt;
+        }
+    }
 
-            callbacks.remove(type + domain);
+    private synchronized boolean isLockHeld() {
+        return lockUsers > 0;
+    }
 
-            for (JmDNS browser : browsers) {
-                browser.removeServiceListener(type + domain, this);
-            }
+    private synchronized long getLockHeldTime() {
+        if (lockUsers > 0) {
+            return lockHeldTime + SystemClock.elapsedRealtime() - lockAcquiredAt;
+        }
+        return lockHeldTime;
+    }
 
+    /**
+     * Addresses the JmDNS instances bind to.
+     * In interface mode, only one address per interface and address family is kept:
+     * the instances of a same interface would otherwise share the same multicast traffic.
+     */
+    @Override
+    public List<InetAddress> selectAddresses(String addressFamily, String responderMode) {
+        List<InetAddress> selectedAddresses = addresses;
+        if ("ipv6".equalsIgnoreCase(addressFamily)) {
+            selectedAddresses = ipv6Addresses;
+        } else if ("ipv4".equalsIgnoreCase(addressFamily)) {
+            selectedAddresses = ipv4Addresses;
+        }
+        if (RESPONDER_MODE_INTERFACE.equalsIgnoreCase(responderMode)) {
+            List<InetAddress> coalescedAddresses = new ArrayList<InetAddress>(selectedAddresses);
+            coalescedAddresses.retainAll(interfaceAddresses);
+            selectedAddresses = coalescedAddresses;
         }
+        return selectedAddresses;
+    }
 
-        private void close() throws IOException {
+    @Override
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        return scheduler;
+    }
 
-            lock.release();
+    @Override
+    public String getHostname() {
+        return hostname;
+    }
 
-            callbacks.clear();
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
 
-            for (JmDNS browser : browsers) {
-                browser.close();
-            }
+    @Override
+    public ResponderPool getResponderPool() {
+        return responderPool;
+    }
 
-        }
+    @Override
+    public Responders getResponders() {
+        return responders;
+    }
 
-        @Override
-        public void serviceResolved(ServiceEvent ev) {
-            Log.d(TAG, "Resolved");
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
-            sendCallback("resolved", ev.getInfo());
-        }
+    /**
+     * Sends the results of an action through its Cordova callback.
+     */
+    private class CordovaResultCallback implements ResultCallback {
 
-        @Override
-        public void serviceRemoved(ServiceEvent ev) {
-            Log.d(TAG, "Removed");
+        private final CallbackContext callbackContext;
 
-            sendCallback("removed", ev.getInfo());
+        public CordovaResultCallback(CallbackContext callbackContext) {
+            this.callbackContext = callbackContext;
         }
 
         @Override
-        public void serviceAdded(ServiceEvent ev) {
-            Log.d(TAG, "Added");
-
-            sendCallback("added", ev.getInfo());
+        public void send(JSONObject message) {
+            sendResult(new PluginResult(PluginResult.Status.OK, message), true);
         }
 
-        public void sendCallback(String action, ServiceInfo service) {
-            CallbackContext callbackContext = callbacks.get(service.getType());
-            if (callbackContext == null) {
-                return;
-            }
-
-            JSONObject status = new JSONObject();
-            try {
-                status.put("action", action);
-                status.put("service", jsonifyService(service));
-
-                Log.d(TAG, "Sending result: " + status.toString());
-
-                PluginResult result = new PluginResult(PluginResult.Status.OK, status);
-                result.setKeepCallback(true);
-                callbackContext.sendPluginResult(result);
+        @Override
+        public void send(JSONArray message) {
+            sendResult(new PluginResult(PluginResult.Status.OK, message), true);
+        }
 
-            } catch (JSONException e) {
-                Log.e(TAG, e.getMessage(), e);
-                callbackContext.error("Error: " + e.getMessage());
-            }
+        @Override
+        public void success() {
+            callbackContext.success();
         }
 
-    }
+        @Override
+        public void success(JSONObject message) {
+            sendResult(new PluginResult(PluginResult.Status.OK, message), false);
+        }
 
-    private static JSONObject jsonifyService(ServiceInfo service) throws JSONException {
-        JSONObject obj = new JSONObject();
-
-        String domain = service.getDomain() + ".";
-        obj.put("domain", domain);
-        obj.put("type", service.getType().replace(domain, ""));
-        obj.put("name", service.getName());
-        obj.put("port", service.getPort());
-        obj.put("hostname", service.getServer());
-
-        JSONArray ipv4Addresses = new JSONArray();
-        InetAddress[] inet4Addresses = service.getInet4Addresses();
-        for (int i = 0; i < inet4Addresses.length; i++) {
-            if (inet4Addresses[i] != null) {
-                ipv4Addresses.put(inet4Addresses[i].getHostAddress());
-            }
+        @Override
+        public void success(JSONArray message) {
+            sendResult(new PluginResult(PluginResult.Status.OK, message), false);
         }
-        obj.put("ipv4Addresses", ipv4Addresses);
 
-        JSONArray ipv6Addresses = new JSONArray();
-        InetAddress[] inet6Addresses = service.getInet6Addresses();
-        for (int i = 0; i < inet6Addresses.length; i++) {
-            if (inet6Addresses[i] != null) {
-                ipv6Addresses.put(inet6Addresses[i].getHostAddress());
+        private void sendResult(PluginResult result, boolean keepCallback) {
+            result.setKeepCallback(keepCallback);
+            metrics.messageSent(result.getMessage());
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Sending result: " + result.getMessage());
             }
+            callbackContext.sendPluginResult(result);
         }
-        obj.put("ipv6Addresses", ipv6Addresses);
 
-        JSONObject props = new JSONObject();
-        Enumeration<String> names = service.getPropertyNames();
-        while (names.hasMoreElements()) {
-            String name = names.nextElement();
-            props.put(name, service.getPropertyString(name));
+        @Override
+        public void error(String message) {
+            callbackContext.error(message);
         }
-        obj.put("txtRecord", props);
-
-        return obj;
 
     }
 
@@ -0,0 +1,80 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * The mDNS stack the plugin publishes and browses with, selected by the ZeroConfBackend preference.
+ * Each action answers through its callback, from any thread.
+ */
+interface ZeroConfBackend {
+
+    void register(String type, String domain, String name, int port, JSONObject props,
+                  String addressFamily, String responderMode, ResultCallback callback);
+
+    void unregister(String type, String domain, String name, ResultCallback callback);
+
+    void update(String type, String domain, String name, JSONObject props, int coalesceInterval, ResultCallback callback);
+
+    void registerAll(JSONArray services, String addressFamily, String responderMode, ResultCallback callback);
+
+    void unregisterAll(JSONArray services, ResultCallback callback);
+
+    void stop(ResultCallback callback);
+
+    /**
+     * Watches the types, or subtypes, with the same callback.
+     */
+    void watch(List<String> types, String domain, WatchOptions options, ResultCallback callback);
+
+    void unwatch(List<String> types, String domain, ResultCallback callback);
+
+    void close(ResultCallback callback);
+
+    void list(String type, String domain, ResultCallback callback);
+
+    void discover(String type, String domain, int timeout, int maxResults, boolean resolve,
+                  String addressFamily, String responderMode, ResultCallback callback);
+
+    void resolve(String type, String domain, String name, int timeout,
+                 String addressFamily, String responderMode, ResultCallback callback);
+
+    /**
+     * The service types present in the domain, browsed for timeout ms unless cached.
+     */
+    void browseTypes(String domain, int timeout, String addressFamily, String responderMode, ResultCallback callback);
+
+    void watchTypes(String domain, String addressFamily, String responderMode, ResultCallback callback);
+
+    void unwatchTypes(String domain, ResultCallback callback);
+
+    /**
+     * Follows the addresses of the host after a network change, the callback may be null.
+     */
+    void updateAddresses(ResultCallback callback);
+
+    /**
+     * Stops browsing while the app is in background, watches are kept.
+     */
+    void suspend();
+
+    void resume();
+
+    /**
+     * The resolved services, to be restored by the next launch.
+     */
+    List<StoredService> getServices();
+
+    /**
+     * Services saved by the previous launch, sent as cached when their type is watched.
+     */
+    void restoreServices(List<StoredService> entries);
+
+    void getStats(JSONObject stats) throws JSONException;
+
+    void destroy();
+
+}
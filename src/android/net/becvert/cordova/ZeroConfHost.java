@@ -0,0 +1,39 @@
+package net.becvert.cordova;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * What the managers need from the plugin, so that they do not depend on Cordova or Android directly.
+ */
+interface ZeroConfHost {
+
+    String getHostname();
+
+    /**
+     * Addresses the JmDNS instances bind to, for the address family and responder mode.
+     */
+    List<InetAddress> selectAddresses(String addressFamily, String responderMode);
+
+    /**
+     * The multicast lock is reference-counted, each acquire must be matched by a release.
+     */
+    void acquireLock();
+
+    void releaseLock();
+
+    /**
+     * Time in ms since boot, including deep sleep.
+     */
+    long elapsedRealtime();
+
+    ScheduledExecutorService getScheduler();
+
+    ResponderPool getResponderPool();
+
+    Responders getResponders();
+
+    Metrics getMetrics();
+
+}
@@ -0,0 +1,58 @@
+package net.becvert.cordova;
+
+/**
+ * Where the managers log to. The plugin installs a logger writing to logcat, off Android the errors go to stderr.
+ */
+final class ZeroConfLog {
+
+    interface Logger {
+
+        boolean isDebugEnabled();
+
+        void d(String tag, String message);
+
+        void e(String tag, String message, Throwable e);
+
+    }
+
+    private static final Logger STDERR = new Logger() {
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void d(String tag, String message) {
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable e) {
+            System.err.println(tag + ": " + message);
+            if (e != null) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private static volatile Logger logger = STDERR;
+
+    private ZeroConfLog() {
+    }
+
+    static void setLogger(Logger logger) {
+        ZeroConfLog.logger = logger != null ? logger : STDERR;
+    }
+
+    static boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
+    static void d(String tag, String message) {
+        logger.d(tag, message);
+    }
+
+    static void e(String tag, String message, Throwable e) {
+        logger.e(tag, message, e);
+    }
+
+}
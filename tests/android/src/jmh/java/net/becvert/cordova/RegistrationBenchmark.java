@@ -0,0 +1,122 @@
+package net.becvert.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * Registering and unregistering a service on a JmDNS instance bound to a multicast-capable address.
+ * Registering returns once JmDNS has started probing, unregistering waits for the goodbye packets to be sent, about 2 s.
+ * Each invocation is measured on its own.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RegistrationBenchmark {
+
+    private static final String TYPE = "_zcbench._tcp.";
+    private static final String DOMAIN = "local.";
+
+    @State(Scope.Benchmark)
+    public static class Publisher {
+
+        TestHost host;
+        SerialExecutor registrationExecutor;
+        RegistrationManager rm;
+        JSONObject props;
+        int count;
+
+        @Setup
+        public void setUp() throws IOException, JSONException {
+            InetAddress address = LoopbackHarness.findMulticastAddress();
+            if (address == null) {
+                throw new IllegalStateException("No multicast-capable interface");
+            }
+            host = new TestHost("benchmark", Collections.singletonList(address));
+            registrationExecutor = new SerialExecutor("ZeroConf-Registration");
+            rm = new RegistrationManager(host, registrationExecutor, "ipv4", null);
+            props = new JSONObject();
+            props.put("path", "/");
+        }
+
+        @TearDown
+        public void tearDown() {
+            rm.stop();
+            registrationExecutor.shutdown();
+            host.shutdown();
+        }
+
+        String nextName() {
+            return "Benchmark " + (count++);
+        }
+
+    }
+
+    /**
+     * A name not registered yet, unregistered after the invocation.
+     */
+    @State(Scope.Thread)
+    public static class Unregistered {
+
+        String name;
+
+        @Setup(Level.Invocation)
+        public void setUp(Publisher publisher) {
+            name = publisher.nextName();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(Publisher publisher) {
+            publisher.rm.unregister(TYPE, DOMAIN, name);
+        }
+
+    }
+
+    /**
+     * A service registered before the invocation.
+     */
+    @State(Scope.Thread)
+    public static class Registered {
+
+        String name;
+
+        @Setup(Level.Invocation)
+        public void setUp(Publisher publisher) throws JSONException {
+            name = publisher.nextName();
+            publisher.rm.register(TYPE, DOMAIN, name, 8080, publisher.props);
+        }
+
+    }
+
+    @Benchmark
+    public List<ResponderResult<ServiceInfo>> register(Publisher publisher, Unregistered service) throws JSONException {
+        return publisher.rm.register(TYPE, DOMAIN, service.name, 8080, publisher.props);
+    }
+
+    @Benchmark
+    public List<ResponderResult<Void>> unregister(Publisher publisher, Registered service) {
+        return publisher.rm.unregister(TYPE, DOMAIN, service.name);
+    }
+
+}
@@ -0,0 +1,62 @@
+package net.becvert.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a resolved service, as done for each event sent to javascript.
+ * A record is serialized once, the JSON being kept in it: cached measures the events that follow the first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceJsonBenchmark {
+
+    private ServiceRecord template;
+    private ServiceRecord cached;
+
+    @Setup
+    public void setUp() throws JSONException {
+        template = createRecord("Living Room", 4);
+        cached = new ServiceRecord(template);
+        ServiceJson.jsonifyService(cached);
+    }
+
+    static ServiceRecord createRecord(String name, int txtEntries) {
+        ServiceRecord record = new ServiceRecord("local.", "_http._tcp.", name);
+        record.port = 8080;
+        record.hostname = "android-1234.local.";
+        record.ipv4Addresses.add("192.168.1.20");
+        record.ipv6Addresses.add("fe80::1c2b:3aff:fe4d:5e6f");
+        for (int i = 0; i < txtEntries; i++) {
+            record.txtRecord.put("key" + i, "value" + i);
+        }
+        return record;
+    }
+
+    @Benchmark
+    public JSONObject jsonifyService() throws JSONException {
+        return ServiceJson.jsonifyService(new ServiceRecord(template));
+    }
+
+    @Benchmark
+    public JSONObject jsonifyServiceCached() throws JSONException {
+        return ServiceJson.jsonifyService(cached);
+    }
+
+}
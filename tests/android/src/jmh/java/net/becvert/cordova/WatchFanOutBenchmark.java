@@ -0,0 +1,111 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivering one resolved event to the watches of a type, as the browser does for each JmDNS event.
+ * Each event is a new record, as the browser creates one per event, so that each one is serialized.
+ * With a batch interval, the events are collapsed per service and sent every batchInterval ms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WatchFanOutBenchmark {
+
+    @Param({"1", "8"})
+    public int watches;
+
+    @Param({"0", "100"})
+    public int batchInterval;
+
+    @Param({"false", "true"})
+    public boolean delta;
+
+    private ScheduledExecutorService scheduler;
+    private WatchCallback[] callbacks;
+    private ServiceRecord[] records;
+    private int next;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        Metrics metrics = new Metrics();
+        ResultCallback sink = new ResultCallback() {
+            @Override
+            public void send(JSONObject message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void send(JSONArray message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void success() {
+            }
+
+            @Override
+            public void success(JSONObject message) {
+            }
+
+            @Override
+            public void success(JSONArray message) {
+            }
+
+            @Override
+            public void error(String message) {
+            }
+        };
+
+        callbacks = new WatchCallback[watches];
+        for (int i = 0; i < watches; i++) {
+            callbacks[i] = new WatchCallback(sink, scheduler, metrics, batchInterval, 0, delta, false, null);
+        }
+
+        // a few services whose TXT record keeps changing
+        records = new ServiceRecord[64];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = ServiceJsonBenchmark.createRecord("Service " + (i % 16), 4);
+            records[i].txtRecord.put("counter", Integer.toString(i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (WatchCallback callback : callbacks) {
+            callback.cancel();
+        }
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void sendResolved() {
+        ServiceRecord record = new ServiceRecord(records[next++ & (records.length - 1)]);
+        for (WatchCallback callback : callbacks) {
+            callback.send("resolved", record);
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package net.becvert.cordova;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Actions called concurrently, as from several Cordova threads, while the managers are created, stopped and closed.
+ * None may fail, and all the JmDNS instances and the multicast lock must be released once stopped and closed.
+ */
+public class JmDNSBackendStressTest {
+
+    // each stop and close runs in turn and releases its instance, a couple of seconds
+    private static final int CALLS = 160;
+    private static final int THREADS = 16;
+
+    private LoopbackHarness harness;
+    private JmDNSBackend backend;
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = LoopbackHarness.create();
+        backend = new JmDNSBackend(harness.browserHost);
+        callers = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        if (harness == null) {
+            return;
+        }
+        callers.shutdownNow();
+        backend.destroy();
+        harness.close();
+    }
+
+    @Test
+    public void parallelWatchUnwatchRegisterStopClose() throws Exception {
+        final String type = LoopbackHarness.uniqueType();
+        final WatchOptions options = new WatchOptions("ipv4", null, 0, 0, false, false, null);
+        final List<RecordingCallback> completions = Collections.synchronizedList(new ArrayList<RecordingCallback>());
+        final List<RecordingCallback> watches = Collections.synchronizedList(new ArrayList<RecordingCallback>());
+        final CountDownLatch called = new CountDownLatch(CALLS);
+        final Random random = new Random(42);
+
+        for (int i = 0; i < CALLS; i++) {
+            final int action = random.nextInt(6);
+            final String name = "Stress " + (i % 8);
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RecordingCallback callback = new RecordingCallback();
+                    switch (action) {
+                        case 0:
+                            watches.add(callback);
+                            backend.watch(Collections.singletonList(type), "local.", options, callback);
+                            break;
+                        case 1:
+                            completions.add(callback);
+                            backend.unwatch(Collections.singletonList(type), "local.", callback);
+                            break;
+                        case 2:
+                            completions.add(callback);
+                            backend.register(type, "local.", name, 8080, new JSONObject(), "ipv4", null, callback);
+                            break;
+                        case 3:
+                            completions.add(callback);
+                            backend.stop(callback);
+                            break;
+                        case 4:
+                            completions.add(callback);
+                            backend.close(callback);
+                            break;
+                        default:
+                            completions.add(callback);
+                            backend.list(type, "local.", callback);
+                            break;
+                    }
+                    called.countDown();
+                }
+            });
+        }
+        assertTrue(called.await(30, TimeUnit.SECONDS));
+
+        for (RecordingCallback callback : completions) {
+            assertTrue(callback.awaitCompletion(1, 120000));
+            assertEquals(Collections.emptyList(), callback.errors);
+        }
+        for (RecordingCallback callback : watches) {
+            assertEquals(Collections.emptyList(), callback.errors);
+        }
+
+        RecordingCallback stopped = new RecordingCallback();
+        backend.stop(stopped);
+        RecordingCallback closed = new RecordingCallback();
+        backend.close(closed);
+        assertTrue(stopped.awaitCompletion(1, 60000));
+        assertTrue(closed.awaitCompletion(1, 60000));
+
+        // a manager created twice, or not released, would still hold its instance
+        assertEquals(0, harness.browserHost.getResponderPool().size());
+        assertEquals(0, harness.browserHost.lockUsers.get());
+    }
+
+    @Test
+    public void statsCountJmDNSThreads() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        backend.watch(Collections.singletonList(LoopbackHarness.uniqueType()), "local.", new WatchOptions("ipv4", null, 0, 0, false, false, null), callback);
+        RecordingCallback updated = new RecordingCallback();
+        // runs on the browser thread after the watch
+        backend.updateAddresses(updated);
+        assertTrue(updated.awaitCompletion(1, 10000));
+
+        JSONObject stats = new JSONObject();
+        backend.getStats(stats);
+        assertEquals(1, stats.getJSONObject("jmdns").getInt("instances"));
+        assertTrue(stats.toString(), stats.getJSONObject("jmdns").getInt("threads") > 0);
+    }
+
+}
@@ -0,0 +1,40 @@
+package net.becvert.cordova;
+
+import org.junit.After;
+
+/**
+ * The contract against JmDNS, over the multicast loopback.
+ */
+public class JmDNSBackendTest extends ZeroConfBackendContract {
+
+    private LoopbackHarness harness;
+
+    @Override
+    protected ZeroConfBackend createPublisher() throws Exception {
+        harness = LoopbackHarness.create();
+        return new JmDNSBackend(harness.publisherHost);
+    }
+
+    @Override
+    protected ZeroConfBackend createBrowser() {
+        return new JmDNSBackend(harness.browserHost);
+    }
+
+    @Override
+    protected long timeout() {
+        return LoopbackHarness.TIMEOUT;
+    }
+
+    @Override
+    protected String createType() {
+        return LoopbackHarness.uniqueType();
+    }
+
+    @After
+    public void shutdown() {
+        if (harness != null) {
+            harness.close();
+        }
+    }
+
+}
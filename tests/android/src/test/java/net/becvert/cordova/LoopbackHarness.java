@@ -0,0 +1,86 @@
+package net.becvert.cordova;
+
+import org.junit.Assume;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+
+/**
+ * A publisher and a browser in the same JVM, each with its own JmDNS instance bound to the same address.
+ * Their queries and answers go through the multicast loopback of the interface.
+ * The loopback interface itself does not support multicast, a multicast-capable interface that is up is needed.
+ */
+class LoopbackHarness {
+
+    // probing and announcing take about 2 s, the first answers come some time after
+    static final long TIMEOUT = 20000;
+
+    final InetAddress address;
+    final TestHost publisherHost;
+    final TestHost browserHost;
+
+    private LoopbackHarness(InetAddress address) {
+        this.address = address;
+        this.publisherHost = new TestHost("publisher-" + UUID.randomUUID().toString().substring(0, 8), Collections.singletonList(address));
+        this.browserHost = new TestHost("browser-" + UUID.randomUUID().toString().substring(0, 8), Collections.singletonList(address));
+    }
+
+    /**
+     * Skips the test when no interface supports multicast.
+     */
+    static LoopbackHarness create() throws IOException {
+        InetAddress address = findMulticastAddress();
+        Assume.assumeNotNull(address);
+        return new LoopbackHarness(address);
+    }
+
+    static InetAddress findMulticastAddress() throws IOException {
+        List<NetworkInterface> intfs = Collections.list(NetworkInterface.getNetworkInterfaces());
+        for (NetworkInterface intf : intfs) {
+            if (!intf.isUp() || intf.isLoopback() || !intf.supportsMulticast()) {
+                continue;
+            }
+            for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
+                if (addr instanceof Inet4Address) {
+                    return addr;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A type of its own for each test, so that the services of other runs on the network do not interfere.
+     */
+    static String uniqueType() {
+        return "_zc" + UUID.randomUUID().toString().replace("-", "").substring(0, 8) + "._tcp.";
+    }
+
+    /**
+     * A JmDNS instance publishing outside of the plugin, for services the plugin cannot publish, with subtypes.
+     */
+    JmDNS createPublisher() throws IOException {
+        return JmDNS.create(address, "raw-" + UUID.randomUUID().toString().substring(0, 8));
+    }
+
+    static ServiceInfo createService(String type, String subtype, String name) {
+        return ServiceInfo.create(type + "local.", name, subtype, 8080, "path=/");
+    }
+
+    /**
+     * The managers must be stopped and closed first, to release their instances.
+     */
+    void close() {
+        publisherHost.shutdown();
+        browserHost.shutdown();
+    }
+
+}
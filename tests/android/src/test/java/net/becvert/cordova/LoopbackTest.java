@@ -0,0 +1,302 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.JmDNSImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The managers against JmDNS, a publisher and a browser exchanging packets over the multicast loopback.
+ */
+public class LoopbackTest {
+
+    private LoopbackHarness harness;
+    private SerialExecutor registrationExecutor;
+    private RegistrationManager rm;
+    private BrowserManager bm;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = LoopbackHarness.create();
+        registrationExecutor = new SerialExecutor("ZeroConf-Registration");
+        rm = new RegistrationManager(harness.publisherHost, registrationExecutor, "ipv4", null);
+        bm = new BrowserManager(harness.browserHost, "ipv4", null);
+    }
+
+    @After
+    public void tearDown() {
+        if (harness == null) {
+            return;
+        }
+        rm.stop();
+        registrationExecutor.shutdown();
+        bm.close();
+        harness.close();
+    }
+
+    private WatchCallback watchCallback(RecordingCallback callback) {
+        return new WatchCallback(callback, harness.browserHost.getScheduler(), harness.browserHost.getMetrics(), 0, 0, false, false, null);
+    }
+
+    @Test
+    public void watchResolvesRegisteredService() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback callback = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(callback));
+
+        JSONObject props = new JSONObject();
+        props.put("path", "/");
+        List<ResponderResult<ServiceInfo>> results = rm.register(type, "local.", "Loopback", 8080, props);
+        assertNull(results.get(0).error);
+
+        JSONObject resolved = callback.awaitEvent("resolved", "Loopback", "path", LoopbackHarness.TIMEOUT);
+        assertNotNull(callback.actions().toString(), resolved);
+        JSONObject service = resolved.getJSONObject("service");
+        assertEquals(8080, service.getInt("port"));
+        assertEquals("/", service.getJSONObject("txtRecord").getString("path"));
+        assertTrue(service.getJSONArray("ipv4Addresses").toString().contains(harness.address.getHostAddress()));
+
+        rm.unregister(type, "local.", "Loopback");
+
+        assertNotNull(callback.actions().toString(), callback.awaitEvent("removed", "Loopback", LoopbackHarness.TIMEOUT));
+    }
+
+    @Test
+    public void takeoverGetsKnownServices() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback first = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(first));
+
+        rm.register(type, "local.", "Takeover", 8080, new JSONObject());
+        assertNotNull(first.actions().toString(), first.awaitEvent("resolved", "Takeover", LoopbackHarness.TIMEOUT));
+
+        RecordingCallback second = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(second));
+
+        assertEquals(Arrays.asList("added Takeover", "resolved Takeover"), second.actions());
+    }
+
+    @Test
+    public void unchangedServiceOutlivesCacheTtl() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback callback = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(callback));
+
+        rm.register(type, "local.", "Unchanged", 8080, new JSONObject());
+        assertNotNull(callback.actions().toString(), callback.awaitEvent("resolved", "Unchanged", LoopbackHarness.TIMEOUT));
+
+        // no event for longer than the TTL, the service still being in the JmDNS cache
+        harness.browserHost.clockOffset = BrowserManager.SERVICE_CACHE_TTL + 60000;
+
+        assertEquals(1, bm.list(type, "local.").length());
+        assertNull(callback.actions().toString(), callback.awaitEvent("removed", "Unchanged", 0));
+    }
+
+    @Test
+    public void updatedTxtRecordIsResolved() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback callback = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(callback));
+
+        JSONObject props = new JSONObject();
+        props.put("path", "/");
+        rm.register(type, "local.", "Updated", 8080, props);
+        assertNotNull(callback.actions().toString(), callback.awaitEvent("resolved", "Updated", "path", LoopbackHarness.TIMEOUT));
+
+        props.put("version", "2");
+        RecordingCallback updated = new RecordingCallback();
+        rm.update(type, "local.", "Updated", props, 0, updated);
+        assertEquals(Collections.emptyList(), updated.errors);
+
+        JSONObject resolved = callback.awaitEvent("resolved", "Updated", "version", LoopbackHarness.TIMEOUT);
+        assertNotNull(callback.actions().toString(), resolved);
+        assertEquals("2", resolved.getJSONObject("service").getJSONObject("txtRecord").getString("version"));
+    }
+
+    @Test
+    public void restoredServicesAreQueriedWithoutBlockingTheWatch() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        JSONObject props = new JSONObject();
+        props.put("path", "/");
+        rm.register(type, "local.", "Present", 8080, props);
+
+        List<StoredService> entries = new ArrayList<StoredService>();
+        for (String name : Arrays.asList("Present", "Gone")) {
+            ServiceRecord record = new ServiceRecord("local.", type, name);
+            record.port = 8080;
+            record.cached = true;
+            entries.add(new StoredService(type + "local.", record, System.currentTimeMillis(), BrowserManager.SERVICE_CACHE_TTL));
+        }
+        bm.restore(entries);
+
+        RecordingCallback callback = new RecordingCallback();
+        long start = System.nanoTime();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(callback));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("watch took " + elapsed + " ms", elapsed < 1000);
+        assertTrue(callback.awaitEvent("resolved", "Gone", 0).optBoolean("cached"));
+
+        JSONObject resolved = callback.awaitEvent("resolved", "Present", "path", LoopbackHarness.TIMEOUT);
+        assertNotNull(callback.actions().toString(), resolved);
+        assertFalse(resolved.optBoolean("cached"));
+        assertNotNull(callback.actions().toString(), callback.awaitEvent("removed", "Gone", LoopbackHarness.TIMEOUT));
+        assertNull(callback.actions().toString(), callback.awaitEvent("removed", "Present", 0));
+    }
+
+    @Test
+    public void subtypeWatchGetsOnlyServicesOfTheSubtype() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback callback = new RecordingCallback();
+        bm.watch(Collections.singletonList("_printer._sub." + type + "local."), watchCallback(callback));
+
+        JmDNS publisher = harness.createPublisher();
+        try {
+            publisher.registerService(LoopbackHarness.createService(type, "", "Plain"));
+            publisher.registerService(LoopbackHarness.createService(type, "printer", "Printer"));
+
+            JSONObject resolved = callback.awaitEvent("resolved", "Printer", "path", LoopbackHarness.TIMEOUT);
+            assertNotNull(callback.actions().toString(), resolved);
+            assertEquals(type, resolved.getJSONObject("service").getString("type"));
+            assertNull(callback.actions().toString(), callback.awaitEvent("added", "Plain", 3000));
+            assertEquals(1, bm.list(null, "local.").length());
+
+            publisher.unregisterService(publisher.getServiceInfo(type + "local.", "Printer"));
+            assertNotNull(callback.actions().toString(), callback.awaitEvent("removed", "Printer", LoopbackHarness.TIMEOUT));
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void subtypeWatchedAfterItsTypeGetsKnownServices() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback base = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(base));
+
+        JmDNS publisher = harness.createPublisher();
+        try {
+            publisher.registerService(LoopbackHarness.createService(type, "", "Plain"));
+            publisher.registerService(LoopbackHarness.createService(type, "printer", "Printer"));
+            assertNotNull(base.actions().toString(), base.awaitEvent("resolved", "Plain", "path", LoopbackHarness.TIMEOUT));
+            assertNotNull(base.actions().toString(), base.awaitEvent("resolved", "Printer", "path", LoopbackHarness.TIMEOUT));
+
+            RecordingCallback subtype = new RecordingCallback();
+            bm.watch(Collections.singletonList("_printer._sub." + type + "local."), watchCallback(subtype));
+
+            assertNotNull(subtype.actions().toString(), subtype.awaitEvent("resolved", "Printer", "path", LoopbackHarness.TIMEOUT));
+            assertNull(subtype.actions().toString(), subtype.awaitEvent("added", "Plain", 3000));
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void coalescedUpdateLeavesTheSchedulerFree() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        RecordingCallback callback = new RecordingCallback();
+        bm.watch(Collections.singletonList(type + "local."), watchCallback(callback));
+
+        JSONObject props = new JSONObject();
+        props.put("path", "/");
+        rm.register(type, "local.", "Coalesced", 8080, props);
+
+        // applied while JmDNS still announces the service, the update waits for the announcement
+        props.put("version", "2");
+        RecordingCallback first = new RecordingCallback();
+        rm.update(type, "local.", "Coalesced", props, 50, first);
+        props.put("version", "3");
+        RecordingCallback second = new RecordingCallback();
+        rm.update(type, "local.", "Coalesced", props, 50, second);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        harness.publisherHost.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(1000, TimeUnit.MILLISECONDS));
+
+        assertTrue(second.awaitCompletion(1, LoopbackHarness.TIMEOUT));
+        assertTrue(first.awaitCompletion(1, LoopbackHarness.TIMEOUT));
+        assertEquals(Collections.emptyList(), first.errors);
+        assertEquals(Collections.emptyList(), second.errors);
+
+        JSONObject resolved = callback.awaitEvent("resolved", "Coalesced", "version", LoopbackHarness.TIMEOUT);
+        assertNotNull(callback.actions().toString(), resolved);
+        assertEquals("3", resolved.getJSONObject("service").getJSONObject("txtRecord").getString("version"));
+    }
+
+    @Test
+    public void stopDropsPendingUpdates() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        rm.register(type, "local.", "Pending", 8080, new JSONObject());
+
+        RecordingCallback callback = new RecordingCallback();
+        rm.update(type, "local.", "Pending", new JSONObject(), 60000, callback);
+        rm.stop();
+
+        assertEquals(Collections.singletonList("Publisher stopped"), callback.errors);
+    }
+
+    @Test
+    public void registeringAgainReplacesTheService() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        rm.register(type, "local.", "Twice", 8080, new JSONObject());
+        List<ResponderResult<ServiceInfo>> results = rm.register(type, "local.", "Twice", 8081, new JSONObject());
+
+        assertNull(results.get(0).error);
+        assertEquals("Twice", results.get(0).value.getName());
+        JmDNSImpl publisher = (JmDNSImpl) results.get(0).responder;
+        assertEquals(1, publisher.getServices().size());
+
+        rm.unregister(type, "local.", "Twice");
+
+        assertTrue(publisher.getServices().isEmpty());
+    }
+
+    @Test
+    public void discoverResolvesServices() throws Exception {
+        String type = LoopbackHarness.uniqueType();
+        JSONObject props = new JSONObject();
+        props.put("path", "/");
+        rm.register(type, "local.", "Discovered", 8080, props);
+
+        Discovery discovery = new Discovery(harness.browserHost, type, "local.", 1, true);
+        JSONArray services = discovery.run(Collections.singletonList(harness.address), (int) LoopbackHarness.TIMEOUT);
+
+        assertEquals(1, services.length());
+        assertEquals("Discovered", services.getJSONObject(0).getString("name"));
+        assertEquals(8080, services.getJSONObject(0).getInt("port"));
+    }
+
+    @Test
+    public void discoverWithoutTimeoutWaitsForTheDefault() throws Exception {
+        Discovery discovery = new Discovery(harness.browserHost, LoopbackHarness.uniqueType(), "local.", 0, false);
+        long start = System.currentTimeMillis();
+        JSONArray services = discovery.run(Collections.singletonList(harness.address), 0);
+
+        assertTrue(System.currentTimeMillis() - start >= Discovery.DEFAULT_TIMEOUT);
+        assertEquals(0, services.length());
+    }
+
+}
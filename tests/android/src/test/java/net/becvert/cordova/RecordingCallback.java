@@ -0,0 +1,112 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps what is sent to it, watch events being flattened out of their batches.
+ */
+class RecordingCallback implements ResultCallback {
+
+    final List<JSONObject> events = new ArrayList<JSONObject>();
+    final List<Object> results = new ArrayList<Object>();
+    final List<String> errors = new ArrayList<String>();
+    private int completed;
+
+    @Override
+    public synchronized void send(JSONObject message) {
+        events.add(message);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void send(JSONArray message) {
+        for (int i = 0; i < message.length(); i++) {
+            events.add(message.optJSONObject(i));
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void success() {
+        completed++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void success(JSONObject message) {
+        results.add(message);
+        completed++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void success(JSONArray message) {
+        results.add(message);
+        completed++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void error(String message) {
+        errors.add(message);
+        completed++;
+        notifyAll();
+    }
+
+    synchronized List<String> actions() {
+        List<String> actions = new ArrayList<String>();
+        for (JSONObject event : events) {
+            actions.add(event.optString("action") + " " + event.optJSONObject("service").optString("name"));
+        }
+        return actions;
+    }
+
+    /**
+     * Waits for an event of the action for the service instance name, returns it or null on timeout.
+     */
+    synchronized JSONObject awaitEvent(String action, String name, long timeout) throws InterruptedException {
+        return awaitEvent(action, name, null, timeout);
+    }
+
+    /**
+     * Same, for an event with the TXT record key. Services are often resolved before their TXT record is received.
+     */
+    synchronized JSONObject awaitEvent(String action, String name, String txtKey, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            for (JSONObject event : events) {
+                JSONObject service = event.optJSONObject("service");
+                if (action.equals(event.optString("action")) && service != null && name.equals(service.optString("name"))
+                        && (txtKey == null || service.optJSONObject("txtRecord").has(txtKey))) {
+                    return event;
+                }
+            }
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return null;
+            }
+            wait(left);
+        }
+    }
+
+    /**
+     * Waits for the action to complete, by success or error.
+     */
+    synchronized boolean awaitCompletion(int count, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (completed < count) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+}
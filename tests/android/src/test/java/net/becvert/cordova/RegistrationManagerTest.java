@@ -0,0 +1,82 @@
+package net.becvert.cordova;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.JmDNSImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class RegistrationManagerTest {
+
+    private LoopbackHarness harness;
+    private final List<JmDNS> rejecting = new ArrayList<JmDNS>();
+    private SerialExecutor registrationExecutor;
+    private RegistrationManager rm;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = LoopbackHarness.create();
+
+        // publishers rejecting every registration
+        final ResponderPool pool = new ResponderPool(harness.publisherHost.getResponders()) {
+            @Override
+            public synchronized List<JmDNS> acquire(List<InetAddress> keys, String hostname) throws IOException {
+                List<JmDNS> acquired = new ArrayList<JmDNS>();
+                for (InetAddress key : keys) {
+                    acquired.add(new JmDNSImpl(key, hostname) {
+                        @Override
+                        public void registerService(ServiceInfo info) throws IOException {
+                            throw new IOException("Rejected");
+                        }
+                    });
+                }
+                rejecting.addAll(acquired);
+                return acquired;
+            }
+        };
+        ZeroConfHost host = new TestHost("rejecting", Collections.singletonList(harness.address)) {
+            @Override
+            public ResponderPool getResponderPool() {
+                return pool;
+            }
+        };
+        registrationExecutor = new SerialExecutor("ZeroConf-Registration");
+        rm = new RegistrationManager(host, registrationExecutor, "ipv4", null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (harness == null) {
+            return;
+        }
+        rm.stop();
+        registrationExecutor.shutdown();
+        for (JmDNS publisher : rejecting) {
+            publisher.close();
+        }
+        harness.close();
+    }
+
+    @Test
+    public void registrationRejectedEverywhereIsForgotten() throws Exception {
+        List<ResponderResult<ServiceInfo>> results = rm.register("_zcrejected._tcp.", "local.", "Rejected", 8080, new JSONObject());
+        assertNotNull(results.get(0).error);
+
+        RecordingCallback callback = new RecordingCallback();
+        rm.update("_zcrejected._tcp.", "local.", "Rejected", new JSONObject(), 0, callback);
+        assertEquals(Collections.singletonList("Service not registered"), callback.errors);
+    }
+
+}
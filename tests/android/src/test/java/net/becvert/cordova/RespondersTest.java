@@ -0,0 +1,71 @@
+package net.becvert.cordova;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RespondersTest {
+
+    private static final int THREADS = 2;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    private final ExecutorService networkExecutor = Executors.newCachedThreadPool();
+    private final Responders responders = new Responders(executor, networkExecutor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        networkExecutor.shutdownNow();
+    }
+
+    private static List<JmDNS> instances(int count) {
+        return Collections.nCopies(count, null);
+    }
+
+    @Test
+    public void fanOutIsBoundedAndNestedTasksComplete() {
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        List<ResponderResult<Integer>> results = responders.fanOut(instances(30), new ResponderTask<Integer>() {
+            @Override
+            public Integer call(JmDNS responder) throws Exception {
+                threads.add(Thread.currentThread().getName());
+                Thread.sleep(10);
+                // as resolving on all the instances from a task of the pool
+                List<ResponderResult<Integer>> nested = responders.fanOut(instances(4), new ResponderTask<Integer>() {
+                    @Override
+                    public Integer call(JmDNS responder) {
+                        threads.add(Thread.currentThread().getName());
+                        return 1;
+                    }
+                });
+                return nested.size();
+            }
+        });
+
+        assertEquals(30, results.size());
+        for (ResponderResult<Integer> result : results) {
+            assertNull(result.error);
+            assertEquals(Integer.valueOf(4), result.value);
+        }
+        // the pool's threads and the calling one
+        assertTrue(threads.toString(), threads.size() <= THREADS + 1);
+        assertTrue(executor.getLargestPoolSize() <= THREADS);
+    }
+
+}
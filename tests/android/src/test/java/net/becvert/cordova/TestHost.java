@@ -0,0 +1,90 @@
+package net.becvert.cordova;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A host off Android: the JmDNS instances bind to the given addresses, and there is no multicast lock to take.
+ */
+class TestHost implements ZeroConfHost {
+
+    private final String hostname;
+    private final List<InetAddress> addresses;
+
+    private final ExecutorService fanOutExecutor = new ThreadPoolExecutor(0, 8, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    private final ExecutorService networkExecutor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Responders responders = new Responders(fanOutExecutor, networkExecutor);
+    private final ResponderPool responderPool = new ResponderPool(responders);
+    private final Metrics metrics = new Metrics();
+
+    final AtomicInteger lockUsers = new AtomicInteger();
+
+    // moves elapsedRealtime forward, to test expiry
+    volatile long clockOffset;
+
+    TestHost(String hostname, List<InetAddress> addresses) {
+        this.hostname = hostname;
+        this.addresses = addresses;
+    }
+
+    @Override
+    public String getHostname() {
+        return hostname;
+    }
+
+    @Override
+    public List<InetAddress> selectAddresses(String addressFamily, String responderMode) {
+        return new ArrayList<InetAddress>(addresses);
+    }
+
+    @Override
+    public void acquireLock() {
+        lockUsers.incrementAndGet();
+    }
+
+    @Override
+    public void releaseLock() {
+        lockUsers.decrementAndGet();
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return System.nanoTime() / 1000000 + clockOffset;
+    }
+
+    @Override
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public ResponderPool getResponderPool() {
+        return responderPool;
+    }
+
+    @Override
+    public Responders getResponders() {
+        return responders;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        fanOutExecutor.shutdownNow();
+        networkExecutor.shutdownNow();
+    }
+
+}
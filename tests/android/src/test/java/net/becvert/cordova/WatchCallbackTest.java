@@ -0,0 +1,92 @@
+package net.becvert.cordova;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+public class WatchCallbackTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final RecordingCallback callback = new RecordingCallback();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Batches are flushed every batchSize services, long before the batch interval.
+     */
+    private WatchCallback batched(int batchSize) {
+        return new WatchCallback(callback, scheduler, new Metrics(), 60000, batchSize, false, false, null);
+    }
+
+    private static ServiceRecord record(String name) {
+        ServiceRecord record = new ServiceRecord("local.", "_http._tcp.", name);
+        record.port = 80;
+        return record;
+    }
+
+    @Test
+    public void addedThenRemovedWithinBatchIsDropped() {
+        WatchCallback watch = batched(2);
+        watch.send("added", record("A"));
+        watch.send("removed", record("A"));
+        watch.send("added", record("B"));
+        watch.send("added", record("C"));
+
+        assertEquals(Arrays.asList("added B", "added C"), callback.actions());
+    }
+
+    @Test
+    public void addedResolvedThenRemovedWithinBatchIsDropped() {
+        WatchCallback watch = batched(2);
+        watch.send("added", record("A"));
+        watch.send("resolved", record("A"));
+        watch.send("removed", record("A"));
+        watch.send("added", record("B"));
+        watch.send("resolved", record("C"));
+
+        assertEquals(Arrays.asList("added B", "resolved C"), callback.actions());
+    }
+
+    @Test
+    public void removedServiceAddedAndRemovedAgainIsRemoved() {
+        WatchCallback watch = batched(2);
+        watch.send("removed", record("A"));
+        watch.send("added", record("A"));
+        watch.send("removed", record("A"));
+        watch.send("added", record("B"));
+
+        assertEquals(Arrays.asList("removed A", "added B"), callback.actions());
+    }
+
+    @Test
+    public void serviceAddedInPreviousBatchIsRemoved() {
+        WatchCallback watch = batched(1);
+        watch.send("added", record("A"));
+        watch.send("removed", record("A"));
+
+        assertEquals(Arrays.asList("added A", "removed A"), callback.actions());
+    }
+
+    @Test
+    public void cancelledWatchGetsNoEvents() {
+        WatchCallback unbatched = new WatchCallback(callback, scheduler, new Metrics(), 0, 0, false, false, null);
+        unbatched.send("added", record("A"));
+        unbatched.cancel();
+        unbatched.send("resolved", record("A"));
+
+        WatchCallback watch = batched(1);
+        watch.cancel();
+        watch.send("added", record("B"));
+
+        assertEquals(Arrays.asList("added A"), callback.actions());
+    }
+
+}
@@ -0,0 +1,235 @@
+package net.becvert.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the plugin expects of any backend, through ZeroConfBackend only.
+ * A publisher registers the services a browser watches, as two devices would.
+ * It runs against JmDNSBackend over the multicast loopback, NsdBackend needs a device.
+ */
+public abstract class ZeroConfBackendContract {
+
+    private static final String DOMAIN = "local.";
+
+    protected ZeroConfBackend publisher;
+    protected ZeroConfBackend browser;
+
+    private String type;
+    private WatchOptions options;
+
+    protected abstract ZeroConfBackend createPublisher() throws Exception;
+
+    protected abstract ZeroConfBackend createBrowser() throws Exception;
+
+    /**
+     * How long the services take to be seen by the browser.
+     */
+    protected abstract long timeout();
+
+    protected abstract String createType();
+
+    @Before
+    public void setUp() throws Exception {
+        publisher = createPublisher();
+        browser = createBrowser();
+        type = createType();
+        options = new WatchOptions("ipv4", null, 0, 0, false, false, null);
+    }
+
+    @After
+    public void tearDown() {
+        if (browser != null) {
+            browser.destroy();
+        }
+        if (publisher != null) {
+            publisher.destroy();
+        }
+    }
+
+    private RecordingCallback register(String name, JSONObject props) throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        publisher.register(type, DOMAIN, name, 8080, props, "ipv4", null, callback);
+        assertTrue(callback.awaitCompletion(1, timeout()));
+        assertEquals(callback.errors.toString(), 1, callback.results.size());
+        return callback;
+    }
+
+    private static JSONObject props(String path) throws Exception {
+        JSONObject props = new JSONObject();
+        props.put("path", path);
+        return props;
+    }
+
+    @Test
+    public void registerAnswersWithTheService() throws Exception {
+        RecordingCallback callback = register("Contract", props("/"));
+
+        JSONObject status = (JSONObject) callback.results.get(0);
+        assertEquals("registered", status.getString("action"));
+        assertEquals("Contract", status.getJSONObject("service").getString("name"));
+        assertEquals(8080, status.getJSONObject("service").getInt("port"));
+    }
+
+    @Test
+    public void watchSeesRegisteredAndUnregisteredServices() throws Exception {
+        RecordingCallback watch = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, watch);
+        register("Contract", props("/"));
+
+        JSONObject resolved = watch.awaitEvent("resolved", "Contract", "path", timeout());
+        assertNotNull(watch.actions().toString(), resolved);
+        assertEquals("/", resolved.getJSONObject("service").getJSONObject("txtRecord").getString("path"));
+
+        RecordingCallback unregister = new RecordingCallback();
+        publisher.unregister(type, DOMAIN, "Contract", unregister);
+        assertTrue(unregister.awaitCompletion(1, timeout()));
+        assertTrue(unregister.errors.isEmpty());
+
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("removed", "Contract", timeout()));
+    }
+
+    @Test
+    public void takeoverGetsKnownServices() throws Exception {
+        RecordingCallback first = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, first);
+        register("Contract", props("/"));
+        assertNotNull(first.actions().toString(), first.awaitEvent("resolved", "Contract", "path", timeout()));
+
+        RecordingCallback second = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, second);
+
+        assertNotNull(second.actions().toString(), second.awaitEvent("resolved", "Contract", "path", timeout()));
+    }
+
+    @Test
+    public void updatedTxtRecordIsResolved() throws Exception {
+        RecordingCallback watch = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, watch);
+        register("Contract", props("/"));
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("resolved", "Contract", "path", timeout()));
+
+        JSONObject props = props("/");
+        props.put("version", "2");
+        RecordingCallback update = new RecordingCallback();
+        publisher.update(type, DOMAIN, "Contract", props, 0, update);
+        assertTrue(update.awaitCompletion(1, timeout()));
+        assertEquals(update.errors.toString(), "updated", ((JSONObject) update.results.get(0)).getString("action"));
+
+        JSONObject resolved = watch.awaitEvent("resolved", "Contract", "version", timeout());
+        assertNotNull(watch.actions().toString(), resolved);
+        assertEquals(8080, resolved.getJSONObject("service").getInt("port"));
+    }
+
+    @Test
+    public void actionsCalledRightAwayRunInOrder() throws Exception {
+        RecordingCallback watch = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, watch);
+
+        // without waiting for the register and watch actions to complete
+        RecordingCallback register = new RecordingCallback();
+        publisher.register(type, DOMAIN, "Ordered", 8080, props("/"), "ipv4", null, register);
+        RecordingCallback update = new RecordingCallback();
+        publisher.update(type, DOMAIN, "Ordered", props("/v2"), 0, update);
+        RecordingCallback unregister = new RecordingCallback();
+        publisher.unregister(type, DOMAIN, "Ordered", unregister);
+        RecordingCallback unwatch = new RecordingCallback();
+        browser.unwatch(Collections.singletonList(type), DOMAIN, unwatch);
+
+        assertTrue(unregister.awaitCompletion(1, timeout()));
+        assertTrue(update.awaitCompletion(1, timeout()));
+        assertEquals(Collections.emptyList(), update.errors);
+        assertEquals(JSONArray.class, unregister.results.get(0).getClass());
+        assertTrue(unwatch.awaitCompletion(1, timeout()));
+
+        RecordingCallback list = new RecordingCallback();
+        browser.list(type, DOMAIN, list);
+        assertEquals(0, ((JSONArray) list.results.get(0)).length());
+
+        // the service is no longer registered
+        RecordingCallback again = new RecordingCallback();
+        publisher.update(type, DOMAIN, "Ordered", props("/v3"), 0, again);
+        assertTrue(again.awaitCompletion(1, timeout()));
+        assertEquals(Collections.singletonList("Service not registered"), again.errors);
+    }
+
+    @Test
+    public void updateOfUnregisteredServiceFails() throws Exception {
+        RecordingCallback update = new RecordingCallback();
+        publisher.update(type, DOMAIN, "Unknown", props("/"), 0, update);
+
+        assertTrue(update.awaitCompletion(1, timeout()));
+        assertEquals(Collections.singletonList("Service not registered"), update.errors);
+    }
+
+    @Test
+    public void listReturnsWatchedServicesUntilClosed() throws Exception {
+        RecordingCallback watch = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, watch);
+        register("Contract", props("/"));
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("resolved", "Contract", "path", timeout()));
+
+        JSONArray services = list();
+        assertEquals(1, services.length());
+        assertEquals("Contract", services.getJSONObject(0).getString("name"));
+
+        RecordingCallback close = new RecordingCallback();
+        browser.close(close);
+        assertTrue(close.awaitCompletion(1, timeout()));
+
+        assertEquals(0, list().length());
+    }
+
+    @Test
+    public void stopUnregistersAllServices() throws Exception {
+        RecordingCallback watch = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, watch);
+        register("First", props("/"));
+        register("Second", props("/"));
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("resolved", "First", timeout()));
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("resolved", "Second", timeout()));
+
+        RecordingCallback stop = new RecordingCallback();
+        publisher.stop(stop);
+        assertTrue(stop.awaitCompletion(1, timeout()));
+
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("removed", "First", timeout()));
+        assertNotNull(watch.actions().toString(), watch.awaitEvent("removed", "Second", timeout()));
+    }
+
+    @Test
+    public void restoredServicesAreSentAsCached() throws Exception {
+        ServiceRecord record = new ServiceRecord(DOMAIN, type, "Restored");
+        record.port = 8080;
+        record.hostname = "restored.local.";
+        record.cached = true;
+        List<StoredService> entries = Collections.singletonList(
+                new StoredService(type + DOMAIN, record, System.currentTimeMillis(), BrowserManager.SERVICE_CACHE_TTL));
+        browser.restoreServices(entries);
+
+        RecordingCallback watch = new RecordingCallback();
+        browser.watch(Collections.singletonList(type), DOMAIN, options, watch);
+
+        JSONObject resolved = watch.awaitEvent("resolved", "Restored", timeout());
+        assertNotNull(watch.actions().toString(), resolved);
+        assertTrue(resolved.optBoolean("cached"));
+    }
+
+    private JSONArray list() throws Exception {
+        RecordingCallback list = new RecordingCallback();
+        browser.list(type, DOMAIN, list);
+        assertTrue(list.awaitCompletion(1, timeout()));
+        return (JSONArray) list.results.get(0);
+    }
+
+}
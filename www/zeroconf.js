@@ -5,37 +5,84 @@ var ZeroConf = {
 
     registerAddressFamily : 'any', /* or ipv6 or ipv4 */
     watchAddressFamily : 'any', /* or ipv6 or ipv4 */
+    responderMode : 'address', /* or interface */
+    updateCoalesceInterval : 0, /* in ms, 0 to apply every update */
+    discoverResolve : true, /* false to return the service names only */
+    watchBatchInterval : 0, /* in ms, 0 to deliver events one by one */
+    watchBatchSize : 0, /* max events per batch, 0 for no limit */
+    watchEventFormat : 'full', /* or delta */
+    watchResolve : true, /* false to watch the service names only, see resolve() */
 
     getHostname : function(success, failure) {
         return exec(success, failure, "ZeroConf", "getHostname", []);
     },
 
     register : function(type, domain, name, port, props, success, failure) {
-        return exec(success, failure, "ZeroConf", "register", [ type, domain, name, port, props, this.registerAddressFamily ]);
+        return exec(success, failure, "ZeroConf", "register", [ type, domain, name, port, props, this.registerAddressFamily, this.responderMode ]);
     },
 
     unregister : function(type, domain, name, success, failure) {
         return exec(success, failure, "ZeroConf", "unregister", [ type, domain, name ]);
     },
 
+    update : function(type, domain, name, props, success, failure) {
+        return exec(success, failure, "ZeroConf", "update", [ type, domain, name, props, this.updateCoalesceInterval ]);
+    },
+
+    registerAll : function(services, success, failure) {
+        return exec(success, failure, "ZeroConf", "registerAll", [ services, this.registerAddressFamily, this.responderMode ]);
+    },
+
+    unregisterAll : function(services, success, failure) {
+        return exec(success, failure, "ZeroConf", "unregisterAll", [ services ]);
+    },
+
     stop : function(success, failure) {
         return exec(success, failure, "ZeroConf", "stop", []);
     },
 
-    watch : function(type, domain, success, failure) {
-        return exec(success, failure, "ZeroConf", "watch", [ type, domain, this.watchAddressFamily ]);
+    watch : function(type, domain, success, failure, filter) {
+        return exec(success, failure, "ZeroConf", "watch", [ type, domain, this.watchAddressFamily, this.responderMode, this.watchBatchInterval, this.watchBatchSize, this.watchEventFormat, this.watchResolve, filter || null ]);
     },
 
     unwatch : function(type, domain, success, failure) {
         return exec(success, failure, "ZeroConf", "unwatch", [ type, domain ]);
     },
 
+    discover : function(type, domain, timeout, maxResults, success, failure) {
+        return exec(success, failure, "ZeroConf", "discover", [ type, domain, timeout, maxResults, this.discoverResolve, this.watchAddressFamily, this.responderMode ]);
+    },
+
+    resolve : function(type, domain, name, timeout, success, failure) {
+        return exec(success, failure, "ZeroConf", "resolve", [ type, domain, name, timeout, this.watchAddressFamily, this.responderMode ]);
+    },
+
+    browseTypes : function(domain, timeout, success, failure) {
+        return exec(success, failure, "ZeroConf", "browseTypes", [ domain, timeout, this.watchAddressFamily, this.responderMode ]);
+    },
+
+    watchTypes : function(domain, success, failure) {
+        return exec(success, failure, "ZeroConf", "watchTypes", [ domain, this.watchAddressFamily, this.responderMode ]);
+    },
+
+    unwatchTypes : function(domain, success, failure) {
+        return exec(success, failure, "ZeroConf", "unwatchTypes", [ domain ]);
+    },
+
+    list : function(type, domain, success, failure) {
+        return exec(success, failure, "ZeroConf", "list", [ type, domain ]);
+    },
+
     close : function(success, failure) {
         return exec(success, failure, "ZeroConf", "close", []);
     },
 
     reInit : function(success, failure) {
         return exec(success, failure, "ZeroConf", "reInit", []);
+    },
+
+    getStats : function(success, failure) {
+        return exec(success, failure, "ZeroConf", "getStats", []);
     }
 
 };